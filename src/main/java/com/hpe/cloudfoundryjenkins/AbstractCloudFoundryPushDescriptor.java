@@ -7,6 +7,7 @@ import com.cloudbees.plugins.credentials.CredentialsMatchers;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
+import hudson.Util;
 import hudson.model.AbstractProject;
 import hudson.model.Describable;
 import hudson.model.Item;
@@ -184,33 +185,44 @@ public abstract class AbstractCloudFoundryPushDescriptor<T extends BuildStep & D
     }
 
     /**
-     * Marks the memory allocation as a required positive integer
+     * Marks the memory allocation as a required positive size, such as 512M
+     * or 1G, unless it contains macros, which are checked when expanded
      * @param value the value
      * @return the validation
      */
     @SuppressWarnings(value = "unused")
     public FormValidation doCheckMemory(@QueryParameter String value) {
-        return FormValidation.validatePositiveInteger(value);
+        if (ManifestPlan.hasMacro(value)) {
+            return FormValidation.ok();
+        }
+        try {
+            return ManifestUtils.asMemoryInteger(Util.fixNull(value).trim()) > 0
+                    ? FormValidation.ok() : FormValidation.error("Not a positive size");
+        } catch (NumberFormatException e) {
+            return FormValidation.error("Not a size, such as 512M or 1G");
+        }
     }
 
     /**
-     * Marks the number of instances as a required positive integer
+     * Marks the number of instances as a required positive integer, unless it
+     * contains macros, which are checked when expanded
      * @param value the value
      * @return the validation
      */
     @SuppressWarnings(value = "unused")
     public FormValidation doCheckInstances(@QueryParameter String value) {
-        return FormValidation.validatePositiveInteger(value);
+        return ManifestPlan.hasMacro(value) ? FormValidation.ok() : FormValidation.validatePositiveInteger(value);
     }
 
     /**
-     * Marks the application timeout as a required positive integer
+     * Marks the application timeout as a required positive integer, unless it
+     * contains macros, which are checked when expanded
      * @param value the value
      * @return the validation
      */
     @SuppressWarnings(value = "unused")
     public FormValidation doCheckTimeout(@QueryParameter String value) {
-        return FormValidation.validatePositiveInteger(value);
+        return ManifestPlan.hasMacro(value) ? FormValidation.ok() : FormValidation.validatePositiveInteger(value);
     }
 
     /**
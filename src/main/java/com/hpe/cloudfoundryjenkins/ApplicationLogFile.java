@@ -0,0 +1,121 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.Run;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+import org.cloudfoundry.doppler.LogMessage;
+
+/**
+ * The logs of one application, written to a compressed file in the build
+ * directory instead of the console. Next to it, an index file has one line per
+ * log line: its byte offset and length in the uncompressed log and its source,
+ * separated by tabs. The index lets the logs be filtered by source without
+ * parsing the log lines.
+ */
+public class ApplicationLogFile implements AutoCloseable {
+
+  /**
+   * The directory, relative to the build directory, holding the log files.
+   */
+  static final String LOG_DIR = "cloudfoundry-logs";
+
+  /**
+   * Extension of the compressed log files.
+   */
+  static final String LOG_EXTENSION = ".log.gz";
+
+  /**
+   * Extension of the index files.
+   */
+  static final String INDEX_EXTENSION = ".idx";
+
+  private final String name;
+  private final Writer log;
+  private final Writer index;
+  private long offset;
+  private long lines;
+
+  private ApplicationLogFile(File dir, String name) throws IOException {
+    this.name = name;
+    OutputStream out = new GZIPOutputStream(new FileOutputStream(new File(dir, name + LOG_EXTENSION)));
+    this.log = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    this.index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(dir, name + INDEX_EXTENSION)), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Creates the log file of an application and links it from the build. Each
+   * call creates a new file, even for an application that already has one.
+   *
+   * @param run the build
+   * @param appName the application
+   * @return the log file
+   * @throws IOException if the file cannot be created
+   */
+  static ApplicationLogFile create(Run<?, ?> run, String appName) throws IOException {
+    File dir = directory(run);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create " + dir);
+    }
+    return new ApplicationLogFile(dir, CloudFoundryLogsAction.record(run, fileName(appName)));
+  }
+
+  static File directory(Run<?, ?> run) {
+    return new File(run.getRootDir(), LOG_DIR);
+  }
+
+  /**
+   * Application names may contain characters that are not safe in file names
+   * or URLs.
+   */
+  static String fileName(String appName) {
+    return appName.replaceAll("[^A-Za-z0-9._-]", "_");
+  }
+
+  /**
+   * @return the file name, without extension
+   */
+  String getName() {
+    return name;
+  }
+
+  /**
+   * @return the number of lines written
+   */
+  synchronized long getLines() {
+    return lines;
+  }
+
+  /**
+   * Appends a log line and its index entry.
+   *
+   * @param message the log message
+   * @throws IOException if the line cannot be written
+   */
+  synchronized void write(LogMessage message) throws IOException {
+    byte[] bytes = (message.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+    log.write(message.getMessage());
+    log.write('\n');
+    index.write(offset + "\t" + bytes.length + "\t" + message.getSourceType() + "\n");
+    offset += bytes.length;
+    lines++;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    try {
+      log.close();
+    } finally {
+      index.close();
+    }
+  }
+}
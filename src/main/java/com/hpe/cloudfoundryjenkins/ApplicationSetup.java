@@ -0,0 +1,333 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.TaskListener;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.collections.CollectionUtils;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.applications.CreateApplicationRequest;
+import org.cloudfoundry.client.v2.applications.ListApplicationsRequest;
+import org.cloudfoundry.client.v2.applications.ListApplicationsResponse;
+import org.cloudfoundry.client.v2.applications.UpdateApplicationRequest;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.operations.applications.Route;
+import org.cloudfoundry.operations.domains.Domain;
+import org.cloudfoundry.operations.routes.MapRouteRequest;
+import org.cloudfoundry.operations.services.BindServiceInstanceRequest;
+import org.cloudfoundry.operations.services.ServiceInstanceSummary;
+import org.cloudfoundry.operations.spaces.GetSpaceRequest;
+import org.cloudfoundry.operations.spaces.SpaceDetail;
+import org.cloudfoundry.operations.stacks.GetStackRequest;
+import org.cloudfoundry.operations.stacks.Stack;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Applies everything in a manifest except the application bits: creates or
+ * updates the application, maps its routes and binds its services. This lets
+ * the plugin set up an application whose bits come from somewhere other than
+ * an upload.
+ */
+public class ApplicationSetup {
+
+  /**
+   * How many route mappings or service bindings of an application run at the
+   * same time. Bindings can be slow on the broker side, but each one is also
+   * a request to the cloud controller, which should not be flooded.
+   */
+  static final int MAX_CONCURRENT_REQUESTS = 4;
+
+  private final CloudFoundryClient client;
+  private final CloudFoundryOperations cloudFoundryOperations;
+  private final String space;
+  private final Duration timeout;
+  private final TaskListener listener;
+
+  /**
+   * Looked up once, by whichever of the push workers sharing this setup needs
+   * it first; guarded by {@code this}.
+   */
+  private String spaceId;
+  private List<Domain> domains;
+
+  ApplicationSetup(CloudFoundryClient client, CloudFoundryOperations cloudFoundryOperations, String space, Duration timeout, TaskListener listener) {
+    this.client = client;
+    this.cloudFoundryOperations = cloudFoundryOperations;
+    this.space = space;
+    this.timeout = timeout;
+    this.listener = listener;
+  }
+
+  /**
+   * Whether an application can be set up without a push. Docker images,
+   * random routes and TCP routes are left to the push.
+   *
+   * @param manifest the manifest
+   * @return {@code true} if {@link #configure(ApplicationManifest)} supports the manifest
+   */
+  static boolean supports(ApplicationManifest manifest) {
+    return manifest.getDocker() == null && hasFixedHttpRoutes(manifest);
+  }
+
+  /**
+   * Whether the routes of an application can be worked out before it is
+   * pushed, i.e. it has no random route and no TCP routes.
+   *
+   * @param manifest the manifest
+   * @return {@code true} if {@link #routes(ApplicationManifest)} supports the manifest
+   */
+  static boolean hasFixedHttpRoutes(ApplicationManifest manifest) {
+    if (Boolean.TRUE.equals(manifest.getRandomRoute())) {
+      return false;
+    }
+    if (manifest.getRoutes() != null) {
+      for (Route route : manifest.getRoutes()) {
+        String hostAndPort = route.getRoute().split("/", 2)[0];
+        if (hostAndPort.contains(":")) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Creates or updates the application, maps its routes and binds its
+   * services.
+   *
+   * @param manifest the manifest
+   * @return the application id
+   */
+  String configure(ApplicationManifest manifest) {
+    String applicationId = createOrUpdate(manifest);
+    mapRoutes(manifest);
+    bindServices(manifest);
+    return applicationId;
+  }
+
+  /**
+   * Maps the routes of the manifest to the application, up to
+   * {@link #MAX_CONCURRENT_REQUESTS} at a time. Routes that do not exist yet
+   * are created.
+   *
+   * @param manifest the manifest
+   */
+  void mapRoutes(ApplicationManifest manifest) {
+    Flux.fromIterable(routes(manifest))
+            .flatMap(request -> timed("Mapped route " + routeName(request),
+                    cloudFoundryOperations.routes().map(request)), MAX_CONCURRENT_REQUESTS)
+            .then()
+            .block(timeout);
+  }
+
+  String createOrUpdate(ApplicationManifest manifest) {
+    String applicationId = client.applicationsV2().list(ListApplicationsRequest.builder()
+            .name(manifest.getName())
+            .spaceId(spaceId())
+            .build())
+            .flatMapIterable(ListApplicationsResponse::getResources)
+            .map(resource -> resource.getMetadata().getId())
+            .next()
+            .block(timeout);
+    String stackId = manifest.getStack() == null ? null : cloudFoundryOperations.stacks()
+            .get(GetStackRequest.builder().name(manifest.getStack()).build())
+            .map(Stack::getId)
+            .block(timeout);
+    String healthCheckType = manifest.getHealthCheckType() == null ? null : manifest.getHealthCheckType().getValue();
+    if (applicationId == null) {
+      listener.getLogger().println("Creating application " + manifest.getName());
+      return client.applicationsV2().create(CreateApplicationRequest.builder()
+              .name(manifest.getName())
+              .spaceId(spaceId())
+              .buildpack(manifest.getBuildpack())
+              .command(manifest.getCommand())
+              .diskQuota(manifest.getDisk())
+              .environmentJsons(manifest.getEnvironmentVariables())
+              .healthCheckHttpEndpoint(manifest.getHealthCheckHttpEndpoint())
+              .healthCheckTimeout(manifest.getTimeout())
+              .healthCheckType(healthCheckType)
+              .instances(manifest.getInstances())
+              .memory(manifest.getMemory())
+              .stackId(stackId)
+              .build())
+              .map(response -> response.getMetadata().getId())
+              .block(timeout);
+    }
+    listener.getLogger().println("Updating application " + manifest.getName());
+    client.applicationsV2().update(UpdateApplicationRequest.builder()
+            .applicationId(applicationId)
+            .buildpack(manifest.getBuildpack())
+            .command(manifest.getCommand())
+            .diskQuota(manifest.getDisk())
+            .environmentJsons(manifest.getEnvironmentVariables())
+            .healthCheckHttpEndpoint(manifest.getHealthCheckHttpEndpoint())
+            .healthCheckTimeout(manifest.getTimeout())
+            .healthCheckType(healthCheckType)
+            .instances(manifest.getInstances())
+            .memory(manifest.getMemory())
+            .stackId(stackId)
+            .build())
+            .block(timeout);
+    return applicationId;
+  }
+
+  /**
+   * Works out the routes of an application the same way {@code cf push} does:
+   * explicit {@code routes} win, otherwise every host is combined with every
+   * domain, defaulting to the application name and the first shared domain.
+   *
+   * @param manifest the manifest
+   * @return the route mapping requests
+   */
+  List<MapRouteRequest> routes(ApplicationManifest manifest) {
+    List<MapRouteRequest> requests = new ArrayList<>();
+    if (Boolean.TRUE.equals(manifest.getNoRoute())) {
+      return requests;
+    }
+    if (!CollectionUtils.isEmpty(manifest.getRoutes())) {
+      for (Route route : manifest.getRoutes()) {
+        requests.add(parseRoute(manifest.getName(), route.getRoute(), domains()));
+      }
+      return requests;
+    }
+    List<String> routeDomains = CollectionUtils.isEmpty(manifest.getDomains())
+            ? Collections.singletonList(defaultDomain())
+            : manifest.getDomains();
+    List<String> hosts;
+    if (Boolean.TRUE.equals(manifest.getNoHostname())) {
+      hosts = Collections.singletonList(null);
+    } else if (CollectionUtils.isEmpty(manifest.getHosts())) {
+      hosts = Collections.singletonList(manifest.getName());
+    } else {
+      hosts = manifest.getHosts();
+    }
+    for (String domain : routeDomains) {
+      for (String host : hosts) {
+        requests.add(MapRouteRequest.builder()
+                .applicationName(manifest.getName())
+                .domain(domain)
+                .host(host)
+                .path(manifest.getRoutePath())
+                .build());
+      }
+    }
+    return requests;
+  }
+
+  /**
+   * Splits a route into host, domain and path. The domain is the longest
+   * available domain the route ends with, and the host is whatever is left
+   * in front of it.
+   *
+   * @param applicationName the application the route is mapped to
+   * @param route the route, such as {@code web.apps.example.com/api}
+   * @param domains the available domains
+   * @return the route mapping request
+   * @throws IllegalArgumentException if the route matches no domain
+   */
+  static MapRouteRequest parseRoute(String applicationName, String route, List<Domain> domains) {
+    String hostAndDomain = route;
+    String path = null;
+    int slash = hostAndDomain.indexOf('/');
+    if (slash >= 0) {
+      path = hostAndDomain.substring(slash);
+      hostAndDomain = hostAndDomain.substring(0, slash);
+    }
+    String routeDomain = null;
+    for (Domain domain : domains) {
+      String name = domain.getName();
+      if ((hostAndDomain.equals(name) || hostAndDomain.endsWith("." + name))
+              && (routeDomain == null || name.length() > routeDomain.length())) {
+        routeDomain = name;
+      }
+    }
+    if (routeDomain == null) {
+      throw new IllegalArgumentException("The route " + route + " of application " + applicationName + " does not match any available domain.");
+    }
+    String host = hostAndDomain.equals(routeDomain) ? null : hostAndDomain.substring(0, hostAndDomain.length() - routeDomain.length() - 1);
+    return MapRouteRequest.builder()
+            .applicationName(applicationName)
+            .domain(routeDomain)
+            .host(host)
+            .path(path)
+            .build();
+  }
+
+  /**
+   * Binds the services of the manifest that are not bound to the application
+   * yet, up to {@link #MAX_CONCURRENT_REQUESTS} at a time.
+   *
+   * @param manifest the manifest
+   */
+  void bindServices(ApplicationManifest manifest) {
+    if (CollectionUtils.isEmpty(manifest.getServices())) {
+      return;
+    }
+    Set<String> bound = new HashSet<>(cloudFoundryOperations.services().listInstances()
+            .filter(instance -> instance.getApplications().contains(manifest.getName()))
+            .map(ServiceInstanceSummary::getName)
+            .collectList()
+            .block(timeout));
+    Flux.fromIterable(manifest.getServices())
+            .filter(service -> !bound.contains(service))
+            .flatMap(service -> timed("Bound service " + service,
+                    cloudFoundryOperations.services().bind(BindServiceInstanceRequest.builder()
+                            .applicationName(manifest.getName())
+                            .serviceInstanceName(service)
+                            .build())), MAX_CONCURRENT_REQUESTS)
+            .then()
+            .block(timeout);
+  }
+
+  /**
+   * Logs how long a request took once it has completed. The clock starts when
+   * the request is subscribed to, not when it is queued behind the
+   * concurrency limit.
+   */
+  private <T> Mono<T> timed(String description, Mono<T> request) {
+    return Mono.defer(() -> {
+      long start = System.nanoTime();
+      return request.doOnSuccess(result -> listener.getLogger().println(
+              description + " (" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)"));
+    });
+  }
+
+  private static String routeName(MapRouteRequest request) {
+    return (request.getHost() == null ? "" : request.getHost() + ".") + request.getDomain()
+            + (request.getPath() == null ? "" : request.getPath());
+  }
+
+  private synchronized String spaceId() {
+    if (spaceId == null) {
+      spaceId = cloudFoundryOperations.spaces().get(GetSpaceRequest.builder().name(space).build())
+              .map(SpaceDetail::getId)
+              .block(timeout);
+    }
+    return spaceId;
+  }
+
+  private synchronized List<Domain> domains() {
+    if (domains == null) {
+      domains = cloudFoundryOperations.domains().list().collectList().block(timeout);
+    }
+    return domains;
+  }
+
+  private String defaultDomain() {
+    for (Domain domain : domains()) {
+      if ("shared".equalsIgnoreCase(String.valueOf(domain.getStatus()))) {
+        return domain.getName();
+      }
+    }
+    throw new IllegalStateException("No shared domain is available for the default route.");
+  }
+}
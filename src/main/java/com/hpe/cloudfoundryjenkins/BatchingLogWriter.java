@@ -0,0 +1,243 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.console.LineTransformationOutputStream;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes lines to the build log from a thread of its own, in batches. Callers
+ * only put lines on a bounded queue, so a slow build log (a remote agent
+ * channel, pipeline log storage) never blocks the thread that produces them,
+ * such as a Reactor event loop. A batch is written and flushed as soon as it
+ * is full, or when the oldest line in it has waited for the flush interval.
+ * <p>
+ * Overflow policy: when the queue is full, new lines are dropped rather than
+ * waited for. The number of dropped lines is written to the log with the next
+ * batch, so that the gap is visible.
+ * <p>
+ * A push prints everything through one writer: the streamed application logs
+ * with {@link #println(String)}, and its own messages through
+ * {@link #listener()}, so the two keep their order in the build log.
+ */
+public class BatchingLogWriter implements AutoCloseable {
+
+  /**
+   * Default queue capacity (10000 lines).
+   */
+  static final int DEFAULT_CAPACITY = 10000;
+
+  /**
+   * Default batch size (256 lines).
+   */
+  static final int DEFAULT_BATCH_SIZE = 256;
+
+  /**
+   * Default flush interval (200 ms).
+   */
+  static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 200;
+
+  private final PrintStream out;
+  private final BlockingQueue<String> queue;
+  private final int batchSize;
+  private final long flushIntervalMillis;
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong queued = new AtomicLong();
+  private final Thread thread;
+
+  private final Object progress = new Object();
+
+  /**
+   * How many queued lines have been written; guarded by {@link #progress}.
+   */
+  private long written;
+
+  private volatile boolean closed;
+
+  /**
+   * Creates a writer with the default capacity, batch size and flush
+   * interval, and starts its thread.
+   *
+   * @param out the build log
+   */
+  BatchingLogWriter(PrintStream out) {
+    this(out, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE, DEFAULT_FLUSH_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Creates a writer and starts its thread.
+   *
+   * @param out the build log
+   * @param capacity how many lines may wait to be written
+   * @param batchSize how many lines are written at once
+   * @param flushIntervalMillis how long a line may wait for its batch to fill up
+   */
+  BatchingLogWriter(PrintStream out, int capacity, int batchSize, long flushIntervalMillis) {
+    this.out = out;
+    this.queue = new ArrayBlockingQueue<>(capacity);
+    this.batchSize = batchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.thread = new Thread(this::drain, "Cloud Foundry build log writer");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Queues a line. Never blocks; if the queue is full, the line is dropped.
+   *
+   * @param line the line
+   * @return {@code true} if the line was queued
+   */
+  boolean println(String line) {
+    if (closed || !queue.offer(line)) {
+      dropped.incrementAndGet();
+      return false;
+    }
+    queued.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * Queues a line, waiting for room rather than dropping it. Once the writer
+   * is closed, the line is written directly.
+   *
+   * @param line the line
+   * @throws InterruptedException if interrupted while waiting for room
+   */
+  void put(String line) throws InterruptedException {
+    if (closed) {
+      synchronized (out) {
+        out.println(line);
+      }
+      return;
+    }
+    queue.put(line);
+    queued.incrementAndGet();
+  }
+
+  /**
+   * Waits until every line queued so far has been written, at the end of a
+   * phase of the push. Must not be called from a Reactor thread.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void flush() throws InterruptedException {
+    long target = queued.get();
+    synchronized (progress) {
+      while (written < target && thread.isAlive()) {
+        progress.wait(flushIntervalMillis);
+      }
+    }
+  }
+
+  /**
+   * @return a listener whose log goes through this writer; its lines wait for
+   * room instead of being dropped
+   */
+  TaskListener listener() {
+    return new StreamTaskListener(new LineTransformationOutputStream() {
+      @Override
+      protected void eol(byte[] b, int len) throws InterruptedIOException {
+        String line = new String(b, 0, len, StandardCharsets.UTF_8);
+        int end = line.length();
+        while (end > 0 && (line.charAt(end - 1) == '\n' || line.charAt(end - 1) == '\r')) {
+          end--;
+        }
+        try {
+          put(line.substring(0, end));
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted while writing to the build log");
+        }
+      }
+    }, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return how many lines were dropped so far
+   */
+  long getDropped() {
+    return dropped.get();
+  }
+
+  private void drain() {
+    List<String> batch = new ArrayList<>(batchSize);
+    long reportedDropped = 0;
+    try {
+      while (!closed || !queue.isEmpty()) {
+        String first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        while (batch.size() < batchSize) {
+          queue.drainTo(batch, batchSize - batch.size());
+          long wait = deadline - System.nanoTime();
+          if (batch.size() >= batchSize || wait <= 0) {
+            break;
+          }
+          String next = queue.poll(wait, TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        reportedDropped = write(batch, reportedDropped);
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      queue.drainTo(batch);
+    }
+    write(batch, reportedDropped);
+  }
+
+  private long write(List<String> batch, long reportedDropped) {
+    long totalDropped = dropped.get();
+    if (batch.isEmpty() && totalDropped == reportedDropped) {
+      return reportedDropped;
+    }
+    StringBuilder sb = new StringBuilder();
+    if (totalDropped > reportedDropped) {
+      sb.append("(").append(totalDropped - reportedDropped).append(" log lines dropped, the build log could not keep up)")
+              .append(System.lineSeparator());
+    }
+    for (String line : batch) {
+      sb.append(line).append(System.lineSeparator());
+    }
+    synchronized (out) {
+      out.print(sb);
+      out.flush();
+    }
+    synchronized (progress) {
+      written += batch.size();
+      progress.notifyAll();
+    }
+    return totalDropped;
+  }
+
+  /**
+   * Writes the lines that are still queued and stops the writer thread.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      thread.interrupt();
+      Thread.currentThread().interrupt();
+    }
+  }
+}
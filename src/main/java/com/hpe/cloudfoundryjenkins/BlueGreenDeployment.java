@@ -0,0 +1,262 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.TaskListener;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.applications.ApplicationDetail;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.operations.applications.ApplicationSummary;
+import org.cloudfoundry.operations.applications.DeleteApplicationRequest;
+import org.cloudfoundry.operations.applications.GetApplicationRequest;
+import org.cloudfoundry.operations.applications.PushApplicationManifestRequest;
+import org.cloudfoundry.operations.applications.RenameApplicationRequest;
+import org.cloudfoundry.operations.applications.Route;
+import org.cloudfoundry.operations.routes.CheckRouteRequest;
+import org.cloudfoundry.operations.routes.DeleteRouteRequest;
+import org.cloudfoundry.operations.routes.MapRouteRequest;
+import org.cloudfoundry.operations.routes.UnmapRouteRequest;
+import reactor.core.publisher.Flux;
+
+/**
+ * Deploys new versions of applications next to the running ones. Every new
+ * ("green") version is pushed under a temporary name and a random temporary
+ * route that is checked to be free, all of them in parallel, while the current ("blue") versions keep serving. Once every green
+ * application has all its instances running, the routes are mapped to it, the
+ * blue application is deleted and the green one takes over its name.
+ */
+public class BlueGreenDeployment {
+
+  /**
+   * Appended to the application name while the new version is staged.
+   */
+  static final String GREEN_SUFFIX = "-green";
+
+  /**
+   * How many random temporary hosts are tried before giving up. A shared
+   * domain is shared with every other space, so a fixed host may be taken.
+   */
+  private static final int TEMPORARY_HOST_ATTEMPTS = 5;
+
+  /**
+   * The longest host name a DNS label allows.
+   */
+  private static final int MAX_HOST_LENGTH = 63;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final CloudFoundryOperations cloudFoundryOperations;
+  private final ApplicationSetup applicationSetup;
+  private final LogCapture logCapture;
+  private final StartupWait startupWait;
+  private final Duration timeout;
+  private final TaskListener listener;
+
+  BlueGreenDeployment(CloudFoundryOperations cloudFoundryOperations, ApplicationSetup applicationSetup, LogCapture logCapture, StartupWait startupWait,
+          Duration timeout, TaskListener listener) {
+    this.cloudFoundryOperations = cloudFoundryOperations;
+    this.applicationSetup = applicationSetup;
+    this.logCapture = logCapture;
+    this.startupWait = startupWait;
+    this.timeout = timeout;
+    this.listener = listener;
+  }
+
+  /**
+   * Whether an application can be deployed blue-green. The final routes have
+   * to be known up front, so random and TCP routes are left to a normal push.
+   *
+   * @param manifest the manifest
+   * @return {@code true} if the application can be deployed blue-green
+   */
+  static boolean supports(ApplicationManifest manifest) {
+    return ApplicationSetup.hasFixedHttpRoutes(manifest);
+  }
+
+  /**
+   * Deploys the applications. If any green application fails to stage or
+   * start, all green applications are deleted and the blue ones are left
+   * untouched.
+   *
+   * @param manifests the manifests of the new versions
+   * @throws InterruptedException if interrupted while waiting for the green instances
+   */
+  void deploy(List<ApplicationManifest> manifests) throws InterruptedException {
+    List<Green> greens = new ArrayList<>();
+    for (ApplicationManifest manifest : manifests) {
+      List<MapRouteRequest> routes = applicationSetup.routes(manifest);
+      // the temporary route lives on the domain of the first real route
+      String temporaryHost = routes.isEmpty() ? null : temporaryHost(manifest.getName() + GREEN_SUFFIX, routes.get(0).getDomain());
+      greens.add(new Green(manifest, routes, temporaryHost));
+    }
+    listener.getLogger().println("Staging " + greens.stream().map(g -> g.name).collect(Collectors.joining(", "))
+            + " while the current versions keep serving.");
+    try {
+      List<StagingLogStream> stagingLogs = new ArrayList<>();
+      for (Green green : greens) {
+        stagingLogs.add(logCapture.open(cloudFoundryOperations, listener, green.name, greens.size() > 1));
+        green.crashes = startupWait.crashDetector(green.name);
+      }
+      try {
+        Flux.fromIterable(greens)
+                .zipWith(Flux.fromIterable(stagingLogs))
+                .flatMap(greenAndLogs -> greenAndLogs.getT1().crashes.watch(greenAndLogs.getT2().failFast(cloudFoundryOperations.applications()
+                        .pushManifest(PushApplicationManifestRequest.builder().manifest(greenAndLogs.getT1().manifest).build()))))
+                .then()
+                .block(timeout);
+      } finally {
+        stagingLogs.forEach(StagingLogStream::close);
+      }
+      stagingLogs.forEach(logs -> logs.printRecentIfMissed(timeout.getSeconds()));
+      for (Green green : greens) {
+        waitUntilHealthy(green);
+      }
+    } catch (RuntimeException | InterruptedException e) {
+      listener.getLogger().println("Blue-green deployment failed, deleting the new versions. The current versions were not changed.");
+      for (Green green : greens) {
+        delete(green);
+      }
+      throw e;
+    }
+    Set<String> existing = cloudFoundryOperations.applications().list()
+            .map(ApplicationSummary::getName)
+            .collect(Collectors.toSet())
+            .block(timeout);
+    for (Green green : greens) {
+      switchOver(green, existing.contains(green.blueName));
+    }
+  }
+
+  /**
+   * Picks a random host for the temporary route of a green application that
+   * no application in any space uses on the domain yet.
+   *
+   * @throws IllegalStateException if every host tried is taken
+   */
+  private String temporaryHost(String name, String domain) {
+    String base = name.toLowerCase().replaceAll("[^a-z0-9-]", "-");
+    base = base.substring(0, Math.min(base.length(), MAX_HOST_LENGTH - 9));
+    for (int i = 0; i < TEMPORARY_HOST_ATTEMPTS; i++) {
+      String host = base + "-" + String.format("%08x", RANDOM.nextInt());
+      Boolean taken = cloudFoundryOperations.routes().check(CheckRouteRequest.builder()
+              .domain(domain)
+              .host(host)
+              .build())
+              .block(timeout);
+      if (!Boolean.TRUE.equals(taken)) {
+        return host;
+      }
+    }
+    throw new IllegalStateException("No free temporary route found on domain " + domain + " for application " + name);
+  }
+
+  /**
+   * Waits until every requested instance of a green application is running.
+   * The push itself only waits for the first one.
+   */
+  private void waitUntilHealthy(Green green) throws InterruptedException {
+    ApplicationDetail detail = cloudFoundryOperations.applications()
+            .get(GetApplicationRequest.builder().name(green.name).build())
+            .block(timeout);
+    startupWait.awaitRunning(detail.getId(), green.name, detail.getInstances(), green.crashes);
+  }
+
+  /**
+   * Maps the routes of the blue application to the green one, deletes the
+   * blue application, gives the green one its name and removes the temporary
+   * route.
+   */
+  private void switchOver(Green green, boolean blueExists) {
+    listener.getLogger().println("Switching " + green.blueName + " over to the new version.");
+    for (MapRouteRequest route : green.routes) {
+      cloudFoundryOperations.routes().map(MapRouteRequest.builder().from(route).applicationName(green.name).build())
+              .block(timeout);
+    }
+    if (blueExists) {
+      cloudFoundryOperations.applications().delete(DeleteApplicationRequest.builder()
+              .name(green.blueName)
+              .deleteRoutes(false)
+              .build())
+              .block(timeout);
+    }
+    cloudFoundryOperations.applications().rename(RenameApplicationRequest.builder()
+            .name(green.name)
+            .newName(green.blueName)
+            .build())
+            .block(timeout);
+    if (green.temporaryRoute != null) {
+      cloudFoundryOperations.routes().unmap(UnmapRouteRequest.builder()
+              .applicationName(green.blueName)
+              .domain(green.temporaryRoute.getDomain())
+              .host(green.temporaryRoute.getHost())
+              .build())
+              .block(timeout);
+      cloudFoundryOperations.routes().delete(DeleteRouteRequest.builder()
+              .domain(green.temporaryRoute.getDomain())
+              .host(green.temporaryRoute.getHost())
+              .build())
+              .block(timeout);
+    }
+    listener.getLogger().println("Application " + green.blueName + " now runs the new version.");
+  }
+
+  private void delete(Green green) {
+    try {
+      cloudFoundryOperations.applications().delete(DeleteApplicationRequest.builder()
+              .name(green.name)
+              .deleteRoutes(green.temporaryRoute != null)
+              .build())
+              .block(timeout);
+    } catch (RuntimeException e) {
+      listener.getLogger().println("WARNING: could not delete application " + green.name + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * A new version of an application, pushed under a temporary name.
+   */
+  private static final class Green {
+
+    final String blueName;
+    final String name;
+    final List<MapRouteRequest> routes;
+    final MapRouteRequest temporaryRoute;
+    final ApplicationManifest manifest;
+    CrashLoopDetector crashes;
+
+    Green(ApplicationManifest manifest, List<MapRouteRequest> routes, String temporaryHost) {
+      this.blueName = manifest.getName();
+      this.name = blueName + GREEN_SUFFIX;
+      this.routes = routes;
+      ApplicationManifest.Builder builder = ApplicationManifest.builder()
+              .from(manifest)
+              .name(name)
+              .domains((Iterable<String>) null)
+              .hosts((Iterable<String>) null)
+              .noHostname(null)
+              .randomRoute(null)
+              .routePath(null);
+      if (temporaryHost == null) {
+        this.temporaryRoute = null;
+        builder = builder.routes((Iterable<Route>) null).noRoute(true);
+      } else {
+        this.temporaryRoute = MapRouteRequest.builder()
+                .applicationName(name)
+                .domain(routes.get(0).getDomain())
+                .host(temporaryHost)
+                .build();
+        builder = builder.routes(Collections.singletonList(Route.builder().route(temporaryHost + "." + temporaryRoute.getDomain()).build()))
+                .noRoute(null);
+      }
+      this.manifest = builder.build();
+    }
+  }
+}
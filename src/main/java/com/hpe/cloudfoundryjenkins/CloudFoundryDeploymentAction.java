@@ -0,0 +1,144 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Records the applications deployed by a build, so that later builds can
+ * tell what has actually changed since the last push.
+ */
+public class CloudFoundryDeploymentAction extends InvisibleAction {
+
+  /**
+   * How many previous builds to search for a deployment record.
+   */
+  static final int MAX_HISTORY = 25;
+
+  private final List<Deployment> deployments = new CopyOnWriteArrayList<>();
+
+  public List<Deployment> getDeployments() {
+    return deployments;
+  }
+
+  /**
+   * Records a deployment against a build, replacing any earlier record for the
+   * same application made by the same build.
+   *
+   * @param run the build
+   * @param deployment the deployment
+   */
+  static void record(Run<?, ?> run, Deployment deployment) {
+    CloudFoundryDeploymentAction action;
+    synchronized (run) {
+      action = run.getAction(CloudFoundryDeploymentAction.class);
+      if (action == null) {
+        action = new CloudFoundryDeploymentAction();
+        run.addAction(action);
+      }
+    }
+    action.deployments.removeIf(d -> d.isSameApplication(deployment));
+    action.deployments.add(deployment);
+  }
+
+  /**
+   * Finds the most recent deployment of an application, looking at the current
+   * build first and then at up to {@link #MAX_HISTORY} previous builds.
+   *
+   * @param run the current build
+   * @param target the expanded cloudfoundry target
+   * @param organization the expanded organization
+   * @param space the expanded space
+   * @param appName the application name
+   * @return the most recent deployment, or {@code null} if none was found
+   */
+  static Deployment findLatest(Run<?, ?> run, String target, String organization, String space, String appName) {
+    Deployment key = new Deployment(target, organization, space, appName);
+    Run<?, ?> r = run;
+    for (int i = 0; r != null && i <= MAX_HISTORY; i++, r = r.getPreviousBuild()) {
+      CloudFoundryDeploymentAction action = r.getAction(CloudFoundryDeploymentAction.class);
+      if (action == null) {
+        continue;
+      }
+      for (Deployment d : action.deployments) {
+        if (d.isSameApplication(key)) {
+          return d;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A single application deployment.
+   */
+  public static class Deployment {
+
+    public final String target;
+    public final String organization;
+    public final String space;
+    public final String appName;
+
+    /**
+     * Digest of the application bits (see {@link ManifestUtils#bitsDigest(org.cloudfoundry.operations.applications.ApplicationManifest)}).
+     */
+    public String bitsDigest;
+
+    /**
+     * Digest of the manifest, ignoring scale and staging settings (see {@link ManifestUtils#configurationDigest(org.cloudfoundry.operations.applications.ApplicationManifest)}).
+     */
+    public String configurationDigest;
+
+    /**
+     * The buildpack the application was staged with, as given in the manifest.
+     */
+    public String buildpack;
+
+    /**
+     * The stack the application was staged on, as given in the manifest.
+     */
+    public String stack;
+
+    /**
+     * The time the application bits were last uploaded, as reported by cloudfoundry.
+     */
+    public Long lastUploaded;
+
+    /**
+     * The droplet the application runs after the deployment.
+     */
+    public String dropletId;
+
+    /**
+     * The droplet the application ran before the deployment, which is what a
+     * rollback goes back to.
+     */
+    public String previousDropletId;
+
+    /**
+     * The strategy that replaced the application with a new one, or
+     * {@code null} if the application was updated in place. A replaced
+     * application has lost its droplet history, so it cannot be rolled back.
+     */
+    public DeploymentStrategy strategy;
+
+    public Deployment(String target, String organization, String space, String appName) {
+      this.target = target;
+      this.organization = organization;
+      this.space = space;
+      this.appName = appName;
+    }
+
+    boolean isSameApplication(Deployment other) {
+      return Objects.equals(target, other.target)
+              && Objects.equals(organization, other.organization)
+              && Objects.equals(space, other.space)
+              && Objects.equals(appName, other.appName);
+    }
+  }
+}
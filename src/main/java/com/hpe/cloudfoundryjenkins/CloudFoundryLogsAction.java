@@ -0,0 +1,155 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.Run;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.ServletException;
+import jenkins.model.RunAction2;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Links the application log files written by a build (see
+ * {@link ApplicationLogFile}) from the build page, and serves them
+ * uncompressed, optionally limited to one log source.
+ */
+public class CloudFoundryLogsAction implements RunAction2 {
+
+  private final List<String> logs = new CopyOnWriteArrayList<>();
+
+  private transient Run<?, ?> run;
+
+  /**
+   * Records that a build writes an application log file, under a name no
+   * other log file of the build has. An application pushed more than once
+   * in a build, or two applications whose names only differ in characters
+   * that are not safe in file names, get numbered names.
+   *
+   * @param run the build
+   * @param name the wanted log file name, without extension
+   * @return the name to write the log file under, without extension
+   */
+  static String record(Run<?, ?> run, String name) {
+    CloudFoundryLogsAction action;
+    synchronized (run) {
+      action = run.getAction(CloudFoundryLogsAction.class);
+      if (action == null) {
+        action = new CloudFoundryLogsAction();
+        run.addAction(action);
+      }
+    }
+    synchronized (action.logs) {
+      String unique = name;
+      for (int i = 2; action.logs.contains(unique); i++) {
+        unique = name + "-" + i;
+      }
+      action.logs.add(unique);
+      return unique;
+    }
+  }
+
+  /**
+   * @return the names of the log files, without extension
+   */
+  public List<String> getLogs() {
+    return logs;
+  }
+
+  public Run<?, ?> getRun() {
+    return run;
+  }
+
+  @Override
+  public void onAttached(Run<?, ?> r) {
+    this.run = r;
+  }
+
+  @Override
+  public void onLoad(Run<?, ?> r) {
+    this.run = r;
+  }
+
+  @Override
+  public String getIconFileName() {
+    return "notepad.png";
+  }
+
+  @Override
+  public String getDisplayName() {
+    return "Cloud Foundry Logs";
+  }
+
+  @Override
+  public String getUrlName() {
+    return "cloudfoundry-logs";
+  }
+
+  /**
+   * Serves one log file as plain text. The {@code app} parameter names the
+   * file; the optional {@code source} parameter keeps only the lines of that
+   * log source, using the index to find them.
+   *
+   * @param req the request
+   * @param rsp the response
+   * @throws IOException if the file cannot be read
+   * @throws ServletException if the response cannot be sent
+   */
+  public void doLog(StaplerRequest req, StaplerResponse rsp) throws IOException, ServletException {
+    String name = req.getParameter("app");
+    if (name == null || !logs.contains(name)) {
+      rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+      return;
+    }
+    File dir = ApplicationLogFile.directory(run);
+    File log = new File(dir, name + ApplicationLogFile.LOG_EXTENSION);
+    if (!log.isFile()) {
+      rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+      return;
+    }
+    String source = req.getParameter("source");
+    rsp.setContentType("text/plain;charset=UTF-8");
+    try (InputStream in = new GZIPInputStream(new FileInputStream(log));
+         OutputStream out = rsp.getOutputStream()) {
+      if (source == null || source.isEmpty()) {
+        IOUtils.copy(in, out);
+        return;
+      }
+      copyLinesOfSource(new File(dir, name + ApplicationLogFile.INDEX_EXTENSION), source, in, out);
+    }
+  }
+
+  /**
+   * Copies the lines of one source, skipping over the others by the byte
+   * offsets in the index.
+   */
+  private static void copyLinesOfSource(File index, String source, InputStream in, OutputStream out) throws IOException {
+    long position = 0;
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8))) {
+      String entry;
+      while ((entry = reader.readLine()) != null) {
+        String[] fields = entry.split("\t", 3);
+        if (fields.length < 3 || !source.equals(fields[2])) {
+          continue;
+        }
+        long offset = Long.parseLong(fields[0]);
+        long length = Long.parseLong(fields[1]);
+        IOUtils.skipFully(in, offset - position);
+        IOUtils.copyLarge(in, out, 0, length);
+        position = offset + length;
+      }
+    }
+  }
+}
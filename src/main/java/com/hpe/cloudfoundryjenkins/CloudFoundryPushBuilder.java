@@ -72,6 +72,64 @@ public class CloudFoundryPushBuilder extends Builder implements SimpleBuildStep
    */
   public CloudFoundryPushPublisher.ManifestChoice manifestChoice = CloudFoundryPushPublisher.ManifestChoice.defaultManifestFileConfig();
 
+  /**
+   * Where to promote droplets from, or {@code null} to push the application bits.
+   */
+  public CloudFoundryPushPublisher.Promotion promotion;
+
+  /**
+   * Whether to go back to the previous droplet when a push fails.
+   */
+  public boolean rollbackOnFailure;
+
+  /**
+   * Whether to leave applications alone whose bits and configuration have not
+   * changed since the last push, instead of restarting them.
+   */
+  public boolean skipUnchanged;
+
+  /**
+   * How new versions replace the running applications.
+   */
+  public DeploymentStrategy deploymentStrategy;
+
+  /**
+   * Whether to push with the v3 packages and builds endpoints.
+   */
+  public boolean nativePush;
+
+  /**
+   * The maximum number of recent log lines printed, or zero for the default.
+   */
+  public int logTailLines;
+
+  /**
+   * The maximum age in seconds of recent log lines printed, or zero for no limit.
+   */
+  public int logTailAge;
+
+  /**
+   * Whether to write each application's logs to its own file.
+   */
+  public boolean logsToFiles;
+
+  /**
+   * Staging log lines that mean staging has failed, one regular expression per line.
+   */
+  public String stagingFailurePatterns;
+
+  /**
+   * The number of crashes after which to stop waiting for an application to
+   * start, zero for the default, or less than zero to never stop early.
+   */
+  public int crashThreshold;
+
+  /**
+   * The most applications pushed at the same time, zero or one to push them
+   * one after another.
+   */
+  public int pushConcurrency;
+
   /**
    * Creates a new CloudFoundryPushBuilder.
    *
@@ -170,15 +228,217 @@ public class CloudFoundryPushBuilder extends Builder implements SimpleBuildStep
     }
   }
 
+  /**
+   * @return where to promote droplets from, or {@code null} to push the
+   * application bits
+   */
+  public CloudFoundryPushPublisher.Promotion getPromotion() {
+    return promotion;
+  }
+
+  /**
+   * @param promotion where to promote droplets from, or {@code null} to push
+   * the application bits
+   */
+  @DataBoundSetter
+  public void setPromotion(CloudFoundryPushPublisher.Promotion promotion) {
+    this.promotion = promotion;
+  }
+
+  /**
+   * @return {@code true} if a failed push goes back to the previous droplet
+   */
+  public boolean isRollbackOnFailure() {
+    return rollbackOnFailure;
+  }
+
+  /**
+   * @param rollbackOnFailure {@code true} to go back to the previous droplet
+   * when a push fails
+   */
+  @DataBoundSetter
+  public void setRollbackOnFailure(boolean rollbackOnFailure) {
+    this.rollbackOnFailure = rollbackOnFailure;
+  }
+
+  /**
+   * @return {@code true} if unchanged applications are left alone
+   */
+  public boolean isSkipUnchanged() {
+    return skipUnchanged;
+  }
+
+  /**
+   * @param skipUnchanged {@code true} to leave applications alone whose bits
+   * and configuration have not changed since the last push, instead of
+   * restarting them
+   */
+  @DataBoundSetter
+  public void setSkipUnchanged(boolean skipUnchanged) {
+    this.skipUnchanged = skipUnchanged;
+  }
+
+  /**
+   * @return how new versions replace the running applications
+   */
+  public DeploymentStrategy getDeploymentStrategy() {
+    return deploymentStrategy;
+  }
+
+  /**
+   * @param deploymentStrategy how new versions replace the running
+   * applications, or {@code null} for {@link DeploymentStrategy#STOP_AND_PUSH}
+   */
+  @DataBoundSetter
+  public void setDeploymentStrategy(DeploymentStrategy deploymentStrategy) {
+    this.deploymentStrategy = deploymentStrategy;
+  }
+
+  /**
+   * @return {@code true} if applications are pushed with the v3 endpoints
+   */
+  public boolean isNativePush() {
+    return nativePush;
+  }
+
+  /**
+   * @param nativePush {@code true} to push applications with the v3 packages
+   * and builds endpoints
+   */
+  @DataBoundSetter
+  public void setNativePush(boolean nativePush) {
+    this.nativePush = nativePush;
+  }
+
+  /**
+   * @return the maximum number of recent log lines printed
+   */
+  public int getLogTailLines() {
+    return logTailLines;
+  }
+
+  /**
+   * @param logTailLines the maximum number of recent log lines printed, or
+   * zero for the default
+   */
+  @DataBoundSetter
+  public void setLogTailLines(int logTailLines) {
+    this.logTailLines = Math.max(logTailLines, 0);
+  }
+
+  /**
+   * @return the maximum age in seconds of recent log lines printed
+   */
+  public int getLogTailAge() {
+    return logTailAge;
+  }
+
+  /**
+   * @param logTailAge the maximum age in seconds of recent log lines printed,
+   * or zero for no limit
+   */
+  @DataBoundSetter
+  public void setLogTailAge(int logTailAge) {
+    this.logTailAge = Math.max(logTailAge, 0);
+  }
+
+  /**
+   * @return {@code true} if each application's logs go to its own file
+   */
+  public boolean isLogsToFiles() {
+    return logsToFiles;
+  }
+
+  /**
+   * @param logsToFiles {@code true} to write each application's logs to its
+   * own file in the build directory instead of the console
+   */
+  @DataBoundSetter
+  public void setLogsToFiles(boolean logsToFiles) {
+    this.logsToFiles = logsToFiles;
+  }
+
+  /**
+   * @return the staging failure patterns, one regular expression per line
+   */
+  public String getStagingFailurePatterns() {
+    return stagingFailurePatterns;
+  }
+
+  /**
+   * @param stagingFailurePatterns staging log lines that mean staging has
+   * failed, one regular expression per line, or blank for the defaults
+   */
+  @DataBoundSetter
+  public void setStagingFailurePatterns(String stagingFailurePatterns) {
+    this.stagingFailurePatterns = stagingFailurePatterns;
+  }
+
+  /**
+   * @return the number of crashes after which to stop waiting for an
+   * application to start
+   */
+  public int getCrashThreshold() {
+    return crashThreshold;
+  }
+
+  /**
+   * @param crashThreshold the number of crashes after which to stop waiting
+   * for an application to start, zero for the default, or less than zero to
+   * never stop early
+   */
+  @DataBoundSetter
+  public void setCrashThreshold(int crashThreshold) {
+    this.crashThreshold = crashThreshold;
+  }
+
+  /**
+   * @return the most applications pushed at the same time
+   */
+  public int getPushConcurrency() {
+    return pushConcurrency;
+  }
+
+  /**
+   * @param pushConcurrency the most applications pushed at the same time,
+   * zero or one to push them one after another
+   */
+  @DataBoundSetter
+  public void setPushConcurrency(int pushConcurrency) {
+    this.pushConcurrency = pushConcurrency;
+  }
+
   @Override
   public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
     CloudFoundryPushTask task = new CloudFoundryPushTask(target, organization, cloudSpace, credentialsId, selfSigned, pluginTimeout, servicesToCreate, manifestChoice);
+    task.setPromotion(promotion);
+    task.setRollbackOnFailure(rollbackOnFailure);
+    task.setSkipUnchanged(skipUnchanged);
+    task.setDeploymentStrategy(deploymentStrategy);
+    task.setNativePush(nativePush);
+    task.setLogTailLines(logTailLines);
+    task.setLogTailAge(logTailAge);
+    task.setLogsToFiles(logsToFiles);
+    task.setStagingFailurePatterns(stagingFailurePatterns);
+    task.setCrashThreshold(crashThreshold);
+    task.setPushConcurrency(pushConcurrency);
     return task.perform(build.getWorkspace(), build, launcher, listener);
   }
 
   @Override
   public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
     CloudFoundryPushTask task = new CloudFoundryPushTask(target, organization, cloudSpace, credentialsId, selfSigned, pluginTimeout, servicesToCreate, manifestChoice);
+    task.setPromotion(promotion);
+    task.setRollbackOnFailure(rollbackOnFailure);
+    task.setSkipUnchanged(skipUnchanged);
+    task.setDeploymentStrategy(deploymentStrategy);
+    task.setNativePush(nativePush);
+    task.setLogTailLines(logTailLines);
+    task.setLogTailAge(logTailAge);
+    task.setLogsToFiles(logsToFiles);
+    task.setStagingFailurePatterns(stagingFailurePatterns);
+    task.setCrashThreshold(crashThreshold);
+    task.setPushConcurrency(pushConcurrency);
     if (!task.perform(workspace, run, launcher, listener)) {
       throw new AbortException("CloudFoundry Push failed.");
     }
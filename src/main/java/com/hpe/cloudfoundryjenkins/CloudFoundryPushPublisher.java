@@ -13,6 +13,7 @@ import hudson.tasks.Publisher;
 import hudson.tasks.Recorder;
 import org.kohsuke.stapler.DataBoundConstructor;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import org.kohsuke.stapler.DataBoundSetter;
 
@@ -70,6 +71,64 @@ public class CloudFoundryPushPublisher extends Recorder {
    */
   public ManifestChoice manifestChoice;
 
+  /**
+   * Where to promote droplets from, or {@code null} to push the application bits.
+   */
+  public Promotion promotion;
+
+  /**
+   * Whether to go back to the previous droplet when a push fails.
+   */
+  public boolean rollbackOnFailure;
+
+  /**
+   * Whether to leave applications alone whose bits and configuration have not
+   * changed since the last push, instead of restarting them.
+   */
+  public boolean skipUnchanged;
+
+  /**
+   * How new versions replace the running applications.
+   */
+  public DeploymentStrategy deploymentStrategy;
+
+  /**
+   * Whether to push with the v3 packages and builds endpoints.
+   */
+  public boolean nativePush;
+
+  /**
+   * The maximum number of recent log lines printed, or zero for the default.
+   */
+  public int logTailLines;
+
+  /**
+   * The maximum age in seconds of recent log lines printed, or zero for no limit.
+   */
+  public int logTailAge;
+
+  /**
+   * Whether to write each application's logs to its own file.
+   */
+  public boolean logsToFiles;
+
+  /**
+   * Staging log lines that mean staging has failed, one regular expression per line.
+   */
+  public String stagingFailurePatterns;
+
+  /**
+   * The number of crashes after which to stop waiting for an application to
+   * start, zero for the default, or less than zero to never stop early.
+   */
+  public int crashThreshold;
+
+  /**
+   * The most applications pushed at the same time, zero or one to push them
+   * one after another.
+   */
+  public int pushConcurrency;
+
   /**
    * The constructor is databound from the Jenkins config page, which is defined
    * in config.jelly.
@@ -140,9 +199,196 @@ public class CloudFoundryPushPublisher extends Recorder {
     }
 
     CloudFoundryPushTask task = new CloudFoundryPushTask(target, organization, cloudSpace, credentialsId, selfSigned, pluginTimeout, servicesToCreate, manifestChoice);
+    task.setPromotion(promotion);
+    task.setRollbackOnFailure(rollbackOnFailure);
+    task.setSkipUnchanged(skipUnchanged);
+    task.setDeploymentStrategy(deploymentStrategy);
+    task.setNativePush(nativePush);
+    task.setLogTailLines(logTailLines);
+    task.setLogTailAge(logTailAge);
+    task.setLogsToFiles(logsToFiles);
+    task.setStagingFailurePatterns(stagingFailurePatterns);
+    task.setCrashThreshold(crashThreshold);
+    task.setPushConcurrency(pushConcurrency);
     return task.perform(build.getWorkspace(), build, launcher, listener);
   }
 
+  public Promotion getPromotion() {
+    return promotion;
+  }
+
+  /**
+   * @param promotion where to promote droplets from, or {@code null} to push
+   * the application bits
+   */
+  @DataBoundSetter
+  public void setPromotion(Promotion promotion) {
+    this.promotion = promotion;
+  }
+
+  /**
+   * @return {@code true} if a failed push goes back to the previous droplet
+   */
+  public boolean isRollbackOnFailure() {
+    return rollbackOnFailure;
+  }
+
+  /**
+   * @param rollbackOnFailure {@code true} to go back to the previous droplet
+   * when a push fails
+   */
+  @DataBoundSetter
+  public void setRollbackOnFailure(boolean rollbackOnFailure) {
+    this.rollbackOnFailure = rollbackOnFailure;
+  }
+
+  /**
+   * @return {@code true} if unchanged applications are left alone
+   */
+  public boolean isSkipUnchanged() {
+    return skipUnchanged;
+  }
+
+  /**
+   * @param skipUnchanged {@code true} to leave applications alone whose bits
+   * and configuration have not changed since the last push, instead of
+   * restarting them
+   */
+  @DataBoundSetter
+  public void setSkipUnchanged(boolean skipUnchanged) {
+    this.skipUnchanged = skipUnchanged;
+  }
+
+  /**
+   * @return how new versions replace the running applications
+   */
+  public DeploymentStrategy getDeploymentStrategy() {
+    return deploymentStrategy;
+  }
+
+  /**
+   * @param deploymentStrategy how new versions replace the running
+   * applications, or {@code null} for {@link DeploymentStrategy#STOP_AND_PUSH}
+   */
+  @DataBoundSetter
+  public void setDeploymentStrategy(DeploymentStrategy deploymentStrategy) {
+    this.deploymentStrategy = deploymentStrategy;
+  }
+
+  /**
+   * @return {@code true} if applications are pushed with the v3 endpoints
+   */
+  public boolean isNativePush() {
+    return nativePush;
+  }
+
+  /**
+   * @param nativePush {@code true} to push applications with the v3 packages
+   * and builds endpoints
+   */
+  @DataBoundSetter
+  public void setNativePush(boolean nativePush) {
+    this.nativePush = nativePush;
+  }
+
+  /**
+   * @return the maximum number of recent log lines printed
+   */
+  public int getLogTailLines() {
+    return logTailLines;
+  }
+
+  /**
+   * @param logTailLines the maximum number of recent log lines printed, or
+   * zero for the default
+   */
+  @DataBoundSetter
+  public void setLogTailLines(int logTailLines) {
+    this.logTailLines = Math.max(logTailLines, 0);
+  }
+
+  /**
+   * @return the maximum age in seconds of recent log lines printed
+   */
+  public int getLogTailAge() {
+    return logTailAge;
+  }
+
+  /**
+   * @param logTailAge the maximum age in seconds of recent log lines printed,
+   * or zero for no limit
+   */
+  @DataBoundSetter
+  public void setLogTailAge(int logTailAge) {
+    this.logTailAge = Math.max(logTailAge, 0);
+  }
+
+  /**
+   * @return {@code true} if each application's logs go to its own file
+   */
+  public boolean isLogsToFiles() {
+    return logsToFiles;
+  }
+
+  /**
+   * @param logsToFiles {@code true} to write each application's logs to its
+   * own file in the build directory instead of the console
+   */
+  @DataBoundSetter
+  public void setLogsToFiles(boolean logsToFiles) {
+    this.logsToFiles = logsToFiles;
+  }
+
+  /**
+   * @return the staging failure patterns, one regular expression per line
+   */
+  public String getStagingFailurePatterns() {
+    return stagingFailurePatterns;
+  }
+
+  /**
+   * @param stagingFailurePatterns staging log lines that mean staging has
+   * failed, one regular expression per line, or blank for the defaults
+   */
+  @DataBoundSetter
+  public void setStagingFailurePatterns(String stagingFailurePatterns) {
+    this.stagingFailurePatterns = stagingFailurePatterns;
+  }
+
+  /**
+   * @return the number of crashes after which to stop waiting for an
+   * application to start
+   */
+  public int getCrashThreshold() {
+    return crashThreshold;
+  }
+
+  /**
+   * @param crashThreshold the number of crashes after which to stop waiting
+   * for an application to start, zero for the default, or less than zero to
+   * never stop early
+   */
+  @DataBoundSetter
+  public void setCrashThreshold(int crashThreshold) {
+    this.crashThreshold = crashThreshold;
+  }
+
+  /**
+   * @return the most applications pushed at the same time
+   */
+  public int getPushConcurrency() {
+    return pushConcurrency;
+  }
+
+  /**
+   * @param pushConcurrency the most applications pushed at the same time,
+   * zero or one to push them one after another
+   */
+  @DataBoundSetter
+  public void setPushConcurrency(int pushConcurrency) {
+    this.pushConcurrency = pushConcurrency;
+  }
+
   /**
    * Gets the required monitor service (NONE).
    *
@@ -166,8 +412,9 @@ public class CloudFoundryPushPublisher extends Recorder {
 
     public String value = "manifestFile";
 
-    // Variable of the choice "manifestFile". Will be null if 'value' is "jenkinsConfig".
+    // Variables of the choice "manifestFile". Will be null if 'value' is "jenkinsConfig".
     public String manifestFile = CloudFoundryUtils.DEFAULT_MANIFEST_PATH;
+    public String varsFiles;
 
     // Variables of the choice "jenkinsConfig". Will all be null (or 0 or false) if 'value' is "manifestFile".
     public String appName;
@@ -184,6 +431,9 @@ public class CloudFoundryPushPublisher extends Recorder {
     public List<EnvironmentVariable> envVars = new ArrayList<>();
     public List<ServiceName> servicesNames = new ArrayList<>();
 
+    // Compiled from the variables of the choice "jenkinsConfig" when first needed, compiled again once they change.
+    private transient volatile CompiledPlan plan;
+
     public ManifestChoice(String value, String manifestFile,
             String appName, String memory, String hostname, String instances, String timeout, String noRoute,
             String appPath, String buildpack, String stack, String command, String domain,
@@ -236,6 +486,15 @@ public class CloudFoundryPushPublisher extends Recorder {
       this.manifestFile = manifestFile;
     }
 
+    public String getVarsFiles() {
+      return varsFiles;
+    }
+
+    @DataBoundSetter
+    public void setVarsFiles(String varsFiles) {
+      this.varsFiles = varsFiles;
+    }
+
     public String getAppName() {
       return appName;
     }
@@ -353,6 +612,42 @@ public class CloudFoundryPushPublisher extends Recorder {
       this.servicesNames = servicesNames;
     }
 
+    /**
+     * Compiles the application configuration entered in Jenkins, or reuses
+     * the last compilation if no setting has changed since. The settings are
+     * compared on every call, as the fields are public and may be changed
+     * without a setter.
+     *
+     * @return the compiled application configuration entered in Jenkins
+     * @throws IllegalArgumentException if a setting without macros is invalid
+     */
+    public ManifestPlan getPlan() {
+      List<Object> settings = Arrays.asList(appName, memory, hostname, instances, timeout, noRoute, appPath,
+              buildpack, stack, command, domain,
+              envVars == null ? null : new ArrayList<>(envVars),
+              servicesNames == null ? null : new ArrayList<>(servicesNames));
+      CompiledPlan compiled = plan;
+      if (compiled == null || !compiled.settings.equals(settings)) {
+        compiled = new CompiledPlan(settings, ManifestPlan.compile(this));
+        plan = compiled;
+      }
+      return compiled.plan;
+    }
+
+    /**
+     * A plan and the settings it was compiled from.
+     */
+    private static final class CompiledPlan {
+
+      private final List<Object> settings;
+      private final ManifestPlan plan;
+
+      CompiledPlan(List<Object> settings, ManifestPlan plan) {
+        this.settings = settings;
+        this.plan = plan;
+      }
+    }
+
     /**
      * Constructs a ManifestChoice with the default settings for using a
      * manifest file. This is mostly for easier unit tests.
@@ -417,6 +712,46 @@ public class CloudFoundryPushPublisher extends Recorder {
     }
   }
 
+  /**
+   * Promotes the droplet of an application in another space instead of
+   * uploading and staging the application bits. The source application must
+   * be on the same cloudfoundry target.
+   */
+  public static class Promotion {
+
+    public final String sourceOrganization;
+    public final String sourceSpace;
+
+    /**
+     * Name of the source application. Defaults to the name of the application
+     * being pushed.
+     */
+    public String sourceAppName;
+
+    @DataBoundConstructor
+    public Promotion(String sourceOrganization, String sourceSpace) {
+      this.sourceOrganization = sourceOrganization;
+      this.sourceSpace = sourceSpace;
+    }
+
+    public String getSourceOrganization() {
+      return sourceOrganization;
+    }
+
+    public String getSourceSpace() {
+      return sourceSpace;
+    }
+
+    public String getSourceAppName() {
+      return sourceAppName;
+    }
+
+    @DataBoundSetter
+    public void setSourceAppName(String sourceAppName) {
+      this.sourceAppName = sourceAppName;
+    }
+  }
+
   @Extension
   public static final class DescriptorImpl extends AbstractCloudFoundryPushDescriptor<Publisher> {
   }
@@ -11,6 +11,8 @@ import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredenti
 import com.cloudbees.plugins.credentials.domains.URIRequirementBuilder;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Computer;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.security.ACL;
@@ -24,20 +26,40 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.lang.StringUtils;
 import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.applications.UpdateApplicationRequest;
+import org.cloudfoundry.client.v3.ClientV3Exception;
 import org.cloudfoundry.doppler.DopplerClient;
 import org.cloudfoundry.operations.CloudFoundryOperations;
 import org.cloudfoundry.operations.DefaultCloudFoundryOperations;
+import org.cloudfoundry.operations.applications.ApplicationDetail;
 import org.cloudfoundry.operations.applications.ApplicationManifest;
-import org.cloudfoundry.operations.applications.LogsRequest;
+import org.cloudfoundry.operations.applications.CopySourceApplicationRequest;
+import org.cloudfoundry.operations.applications.GetApplicationRequest;
 import org.cloudfoundry.operations.applications.PushApplicationManifestRequest;
+import org.cloudfoundry.operations.applications.RestartApplicationRequest;
+import org.cloudfoundry.operations.applications.ScaleApplicationRequest;
+import org.cloudfoundry.operations.applications.StopApplicationRequest;
 import org.cloudfoundry.operations.services.CreateServiceInstanceRequest;
 import org.cloudfoundry.operations.services.DeleteServiceInstanceRequest;
 import org.cloudfoundry.operations.services.ServiceInstanceSummary;
+import org.cloudfoundry.operations.stacks.GetStackRequest;
+import org.cloudfoundry.operations.stacks.Stack;
 import org.cloudfoundry.reactor.ConnectionContext;
 import org.cloudfoundry.reactor.DefaultConnectionContext;
 import org.cloudfoundry.reactor.TokenProvider;
@@ -66,6 +88,17 @@ public class CloudFoundryPushTask {
   private final String pluginTimeout;
   private final List<CloudFoundryPushPublisher.Service> servicesToCreate;
   private final CloudFoundryPushPublisher.ManifestChoice manifestChoice;
+  private CloudFoundryPushPublisher.Promotion promotion;
+  private boolean rollbackOnFailure;
+  private boolean skipUnchanged;
+  private DeploymentStrategy deploymentStrategy = DeploymentStrategy.STOP_AND_PUSH;
+  private boolean nativePush;
+  private int logTailLines;
+  private long logTailAge;
+  private boolean logsToFiles;
+  private String stagingFailurePatterns;
+  private int crashThreshold;
+  private int pushConcurrency;
 
   public CloudFoundryPushTask(String target, String organization, String cloudSpace, String credentialsId, String selfSigned, String pluginTimeout, List<CloudFoundryPushPublisher.Service> servicesToCreate, CloudFoundryPushPublisher.ManifestChoice manifestChoice) {
     this.target = target;
@@ -78,62 +111,136 @@ public class CloudFoundryPushTask {
     this.manifestChoice = manifestChoice;
   }
 
-  public boolean perform(FilePath workspace, Run run, Launcher launcher, TaskListener listener) {
+  /**
+   * @param promotion where to promote droplets from, or {@code null} to push
+   * the application bits
+   */
+  public void setPromotion(CloudFoundryPushPublisher.Promotion promotion) {
+    this.promotion = promotion;
+  }
+
+  /**
+   * @param rollbackOnFailure {@code true} to go back to the previous droplet
+   * when a push fails
+   */
+  public void setRollbackOnFailure(boolean rollbackOnFailure) {
+    this.rollbackOnFailure = rollbackOnFailure;
+  }
+
+  /**
+   * @param skipUnchanged {@code true} to leave applications alone whose bits
+   * and configuration have not changed since the last push, instead of
+   * restarting them
+   */
+  public void setSkipUnchanged(boolean skipUnchanged) {
+    this.skipUnchanged = skipUnchanged;
+  }
+
+  /**
+   * @param deploymentStrategy how new versions replace running applications,
+   * or {@code null} for {@link DeploymentStrategy#STOP_AND_PUSH}
+   */
+  public void setDeploymentStrategy(DeploymentStrategy deploymentStrategy) {
+    this.deploymentStrategy = deploymentStrategy == null ? DeploymentStrategy.STOP_AND_PUSH : deploymentStrategy;
+  }
+
+  /**
+   * @param nativePush {@code true} to push with {@link NativePushEngine}
+   * instead of the operations layer
+   */
+  public void setNativePush(boolean nativePush) {
+    this.nativePush = nativePush;
+  }
+
+  /**
+   * @param logTailLines the maximum number of recent log lines printed, or
+   * zero for {@link RecentLogs#DEFAULT_MAX_LINES}
+   */
+  public void setLogTailLines(int logTailLines) {
+    this.logTailLines = logTailLines;
+  }
+
+  /**
+   * @param logTailAge the maximum age in seconds of recent log lines printed,
+   * or zero for no limit
+   */
+  public void setLogTailAge(long logTailAge) {
+    this.logTailAge = logTailAge;
+  }
+
+  /**
+   * @param logsToFiles {@code true} to write each application's logs to its
+   * own file in the build directory instead of the console
+   */
+  public void setLogsToFiles(boolean logsToFiles) {
+    this.logsToFiles = logsToFiles;
+  }
+
+  /**
+   * @param stagingFailurePatterns staging log lines that mean staging has
+   * failed, one regular expression per line, or blank for the defaults
+   */
+  public void setStagingFailurePatterns(String stagingFailurePatterns) {
+    this.stagingFailurePatterns = stagingFailurePatterns;
+  }
+
+  /**
+   * @param crashThreshold the number of crashes after which to stop waiting
+   * for an application to start, zero for the default, or less than zero to
+   * wait for the whole start timeout
+   */
+  public void setCrashThreshold(int crashThreshold) {
+    this.crashThreshold = crashThreshold;
+  }
+
+  /**
+   * @param pushConcurrency the most applications pushed at the same time,
+   * zero or one to push them one after another
+   */
+  public void setPushConcurrency(int pushConcurrency) {
+    this.pushConcurrency = pushConcurrency;
+  }
+
+  public boolean perform(FilePath workspace, Run run, Launcher launcher, TaskListener buildListener) {
         if (workspace == null) {
           throw new IllegalStateException("Workspace cannot be null");
         }
 
+        // everything the push prints goes through one writer, so the streamed logs and the push's own lines keep their order
+        BatchingLogWriter buildLog = new BatchingLogWriter(buildListener.getLogger());
+        TaskListener listener = buildLog.listener();
         listener.getLogger().println("Cloud Foundry Plugin:");
 
+        Future<Artifacts> preparing = null;
         try {
-            List<StandardUsernamePasswordCredentials> standardCredentials = CredentialsProvider.lookupCredentials(
-                    StandardUsernamePasswordCredentials.class,
-                    run.getParent(),
-                    ACL.SYSTEM,
-                    URIRequirementBuilder.fromUri(TokenMacro.expandAll(run, workspace, listener, target)).build());
+            // checked where the workspace is, so a broken manifest fails before anything is connected to or copied;
+            // a promotion uploads no application files, so their paths need not exist
+            ManifestUtils.ValidatedManifests validated = ManifestUtils.validateManifests(workspace, manifestChoice, promotion == null, run, listener);
+            listener.getLogger().println("Manifests are valid, applications: " + String.join(", ", validated.getNames()));
+            buildLog.flush();
 
-            StandardUsernamePasswordCredentials credentials =
-                    CredentialsMatchers.firstOrNull(standardCredentials, CredentialsMatchers.withId(TokenMacro.expandAll(run, workspace, listener, credentialsId)));
+            // the application files are copied and their manifests loaded while connecting and creating services,
+            // which need neither; a promotion only needs the manifests, which were parsed where the workspace is
+            preparing = Computer.threadPoolForRemoting.submit(() -> promotion == null
+                ? prepareArtifacts(workspace, validated, run, listener)
+                : new Artifacts(null, null, validated.resolve(workspace, false, run, workspace, listener)));
 
-            if (credentials == null) {
+            Clients clients = connect(run, workspace, listener);
+            if (clients == null) {
                 listener.getLogger().println("ERROR: No credentials have been given.");
                 return false;
             }
+            String expandedTarget = TokenMacro.expandAll(run, workspace, listener, target);
+            String expandedOrganization = TokenMacro.expandAll(run, workspace, listener, organization);
+            String expandedCloudSpace = TokenMacro.expandAll(run, workspace, listener, cloudSpace);
+            CloudFoundryClient client = clients.client;
+            CloudFoundryOperations cloudFoundryOperations = clients.operations(expandedOrganization, expandedCloudSpace);
 
-            ConnectionContext connectionContext = createConnectionContext(run, workspace, listener);
-
-            TokenProvider tokenProvider = PasswordGrantTokenProvider.builder()
-                .username(credentials.getUsername())
-                .password(Secret.toString(credentials.getPassword()))
-                .build();
-
-            CloudFoundryClient client = ReactorCloudFoundryClient.builder()
-                .connectionContext(connectionContext)
-                .tokenProvider(tokenProvider)
-                .build();
-
-            DopplerClient dopplerClient = ReactorDopplerClient.builder()
-                .connectionContext(connectionContext)
-                .tokenProvider(tokenProvider)
-                .build();
-
-            UaaClient uaaClient = ReactorUaaClient.builder()
-                .connectionContext(connectionContext)
-                .tokenProvider(tokenProvider)
-                .build();
-
-            CloudFoundryOperations cloudFoundryOperations = DefaultCloudFoundryOperations.builder()
-                .cloudFoundryClient(client)
-                .dopplerClient(dopplerClient)
-                .uaaClient(uaaClient)
-                .organization(TokenMacro.expandAll(run, workspace, listener, organization))
-                .space(TokenMacro.expandAll(run, workspace, listener, cloudSpace))
-                .build();
-
-            // Create services before push
+            // also resolves the organization and space, and fetches the first token
             Flux<ServiceInstanceSummary> currentServicesList = cloudFoundryOperations.services().listInstances();
             List<String> currentServicesNames = currentServicesList.map(service -> service.getName()).collectList().block();
 
+            // Create services before push, while the application files are still being copied
             for (CloudFoundryPushPublisher.Service service : servicesToCreate) {
                 final String serviceName = TokenMacro.expandAll(run, workspace, listener, service.name);
                 boolean createService = true;
@@ -157,25 +264,139 @@ public class CloudFoundryPushTask {
                 }
             }
 
-            FilePath masterPath = pathOnMaster(workspace);
-            boolean isOnSlave = false;
-            if (masterPath == null || !masterPath.equals(workspace)) {
-              masterPath = transferArtifactsToMaster(masterPath, workspace, manifestChoice, listener);
-              isOnSlave = true;
-            }
+            // the push needs both the services and the application files
+            List<ApplicationManifest> manifests = join(preparing).manifests;
 
-            List<ApplicationManifest> manifests = ManifestUtils.loadManifests(masterPath, manifestChoice, isOnSlave, run, workspace, listener);
             String s = TokenMacro.expandAll(run, workspace, listener, pluginTimeout);
             long opTimeout = StringUtils.isBlank(s) ? 0 : Long.parseLong(s);
+            CloudFoundryOperations sourceOperations = promotion == null ? null : clients.operations(
+                TokenMacro.expandAll(run, workspace, listener, promotion.sourceOrganization),
+                TokenMacro.expandAll(run, workspace, listener, promotion.sourceSpace));
+            ApplicationSetup applicationSetup = new ApplicationSetup(client, cloudFoundryOperations, expandedCloudSpace, Duration.ofSeconds(opTimeout), listener);
+            StartupWait startupWait = new StartupWait(client, cloudFoundryOperations, crashThreshold, Duration.ofSeconds(opTimeout), listener);
+            LogCapture logCapture = new LogCapture(run, logsToFiles, new RecentLogs(logTailLines, logTailAge),
+                StagingLogStream.compileFailurePatterns(stagingFailurePatterns, listener), buildLog);
+            Map<String, String> deployedBits = new ConcurrentHashMap<>(); // bits digest -> name of an application running them
+            Map<ApplicationManifest, CloudFoundryDeploymentAction.Deployment> blueGreen = Collections.synchronizedMap(new LinkedHashMap<>());
+            PushScheduler scheduler = new PushScheduler(pushConcurrency, Computer.threadPoolForRemoting);
+            boolean concurrent = pushConcurrency > 1 && manifests.size() > 1;
+            // bits can only be shared between applications if there are several with bits
+            boolean mayShareBits = manifests.stream().filter(m -> m.getPath() != null).count() > 1;
+            List<PushScheduler.Push> pushes = new ArrayList<>(manifests.size());
             for(final ApplicationManifest manifest : manifests) {
-              cloudFoundryOperations.applications().pushManifest(PushApplicationManifestRequest.builder().manifest(manifest).build())
-                  .timeout(Duration.ofSeconds(opTimeout))
-                  .doOnError(e -> e.printStackTrace(listener.getLogger()))
-                  .block();
-              printStagingLogs(cloudFoundryOperations, listener, manifest.getName(), opTimeout);
+              pushes.add(() -> {
+                if (sourceOperations != null) {
+                  String sourceAppName = StringUtils.isBlank(promotion.sourceAppName)
+                      ? manifest.getName()
+                      : TokenMacro.expandAll(run, workspace, listener, promotion.sourceAppName);
+                  CloudFoundryDeploymentAction.Deployment deployment = new CloudFoundryDeploymentAction.Deployment(expandedTarget, expandedOrganization, expandedCloudSpace, manifest.getName());
+                  promoteApplication(client, cloudFoundryOperations, sourceOperations, listener, manifest, sourceAppName, deployment, opTimeout);
+                  CloudFoundryDeploymentAction.record(run, deployment);
+                  return;
+                }
+                CloudFoundryDeploymentAction.Deployment deployment = new CloudFoundryDeploymentAction.Deployment(expandedTarget, expandedOrganization, expandedCloudSpace, manifest.getName());
+                deployment.configurationDigest = ManifestUtils.configurationDigest(manifest);
+                deployment.buildpack = manifest.getBuildpack();
+                deployment.stack = manifest.getStack();
+                CloudFoundryDeploymentAction.Deployment previous = CloudFoundryDeploymentAction.findLatest(run, expandedTarget, expandedOrganization, expandedCloudSpace, manifest.getName());
+                ApplicationDetail current = getApplication(cloudFoundryOperations, manifest.getName(), opTimeout);
+                deployment.previousDropletId = current == null ? null : currentDropletId(client, current.getId(), opTimeout);
+                UpdateKind updateKind = updateKind(previous, deployment, current, manifest);
+                if (updateKind == UpdateKind.PUSH && deploymentStrategy == DeploymentStrategy.BLUE_GREEN) {
+                  if (BlueGreenDeployment.supports(manifest)) {
+                    // deployed together below, so that all new versions stage in parallel
+                    blueGreen.put(manifest, deployment);
+                    return;
+                  }
+                  listener.getLogger().println("Application " + manifest.getName() + " uses a random or TCP route, pushing it without blue-green.");
+                }
+                boolean rolling = updateKind == UpdateKind.PUSH && deploymentStrategy == DeploymentStrategy.ROLLING
+                    && current != null && "STARTED".equals(current.getRequestedState()) && RollingDeployment.supports(manifest);
+                // streamed while the application stages, rather than fetched afterwards
+                StagingLogStream stagingLogs = updateKind == UpdateKind.SCALE || rolling
+                    ? null : logCapture.open(cloudFoundryOperations, listener, manifest.getName(), concurrent);
+                CrashLoopDetector crashes = startupWait.crashDetector(manifest.getName());
+                String pushedDropletId = null;
+                try {
+                  if (updateKind == UpdateKind.SCALE) {
+                    scaleApplication(cloudFoundryOperations, listener, manifest, current, opTimeout);
+                  } else if (updateKind == UpdateKind.RESTAGE) {
+                    restageApplication(client, cloudFoundryOperations, startupWait, listener, stagingLogs, crashes, manifest, current, opTimeout);
+                  } else if (rolling) {
+                    new RollingDeployment(cloudFoundryOperations, applicationSetup, logCapture, startupWait, Duration.ofSeconds(opTimeout), listener)
+                        .deploy(manifest, current.getInstances());
+                  } else if (mayShareBits && deployedBits.containsKey(bitsDigest(deployment, manifest)) && ApplicationSetup.supports(manifest)) {
+                    copyPackage(applicationSetup, cloudFoundryOperations, startupWait, listener, stagingLogs, crashes, deployedBits.get(deployment.bitsDigest), manifest, opTimeout);
+                  } else if (nativePush && NativePushEngine.supports(manifest)) {
+                    pushedDropletId = new NativePushEngine(client, applicationSetup, startupWait, Duration.ofSeconds(opTimeout), listener)
+                        .push(manifest, stagingLogs, crashes);
+                  } else {
+                    // started below, so that the start wait is ours rather than the client's
+                    cloudFoundryOperations.applications().pushManifest(PushApplicationManifestRequest.builder().manifest(manifest).noStart(true).build())
+                        .timeout(Duration.ofSeconds(opTimeout))
+                        .doOnError(e -> e.printStackTrace(listener.getLogger()))
+                        .block();
+                    startupWait.start(getApplication(cloudFoundryOperations, manifest.getName(), opTimeout).getId(), manifest, stagingLogs, crashes);
+                  }
+                } catch (RuntimeException e) {
+                  // before staging starts the application still runs its old droplet
+                  if (rollbackOnFailure && updateKind != UpdateKind.SCALE && !rolling && deployment.previousDropletId != null
+                      && startupWait.hasStarted(current.getId())) {
+                    listener.getLogger().println("Push of application " + manifest.getName() + " failed, rolling back to droplet " + deployment.previousDropletId);
+                    try {
+                      startupWait.runDroplet(current.getId(), deployment.previousDropletId, manifest.getName(), startupWait.crashDetector(manifest.getName()));
+                      listener.getLogger().println("Application " + manifest.getName() + " rolled back.");
+                    } catch (RuntimeException | InterruptedException rollbackFailure) {
+                      listener.getLogger().println("ERROR: Rollback of application " + manifest.getName() + " failed: " + rollbackFailure.getMessage());
+                      e.addSuppressed(rollbackFailure);
+                      if (rollbackFailure instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                      }
+                    }
+                  }
+                  throw e;
+                } finally {
+                  if (stagingLogs != null) {
+                    stagingLogs.close();
+                  }
+                }
+                if (stagingLogs != null) {
+                  stagingLogs.printRecentIfMissed(opTimeout);
+                }
+                current = getApplication(cloudFoundryOperations, manifest.getName(), opTimeout);
+                if (rolling) {
+                  // the application was replaced, so its old droplets are gone
+                  deployment.previousDropletId = null;
+                  deployment.strategy = DeploymentStrategy.ROLLING;
+                }
+                if (pushedDropletId != null) {
+                  deployment.dropletId = pushedDropletId;
+                } else {
+                  deployment.dropletId = current == null ? null : currentDropletId(client, current.getId(), opTimeout);
+                }
+                if (deployment.bitsDigest != null && manifest.getDocker() == null) {
+                  deployedBits.putIfAbsent(deployment.bitsDigest, manifest.getName());
+                }
+                deployment.lastUploaded = lastUploaded(current);
+                CloudFoundryDeploymentAction.record(run, deployment);
+              });
             }
-            if (!masterPath.equals(workspace)) {
-              masterPath.deleteRecursive();
+            scheduler.runAll(pushes);
+            buildLog.flush();
+            if (!blueGreen.isEmpty()) {
+              new BlueGreenDeployment(cloudFoundryOperations, applicationSetup, logCapture, startupWait, Duration.ofSeconds(opTimeout), listener)
+                  .deploy(new ArrayList<>(blueGreen.keySet()));
+              for (Map.Entry<ApplicationManifest, CloudFoundryDeploymentAction.Deployment> entry : blueGreen.entrySet()) {
+                // the application was replaced, so its old droplets are gone
+                CloudFoundryDeploymentAction.Deployment deployment = entry.getValue();
+                ApplicationDetail current = getApplication(cloudFoundryOperations, entry.getKey().getName(), opTimeout);
+                deployment.previousDropletId = null;
+                deployment.strategy = DeploymentStrategy.BLUE_GREEN;
+                deployment.dropletId = current == null ? null : currentDropletId(client, current.getId(), opTimeout);
+                deployment.lastUploaded = lastUploaded(current);
+                CloudFoundryDeploymentAction.record(run, deployment);
+              }
+              buildLog.flush();
             }
             return true;
         } catch (MalformedURLException e) {
@@ -190,9 +411,270 @@ public class CloudFoundryPushTask {
         } catch (Exception e) {
             e.printStackTrace(listener.getLogger());
             return false;
+        } finally {
+            discard(preparing);
+            buildLog.close();
         }
   }
 
+    /**
+     * Rolls an application back to the droplet it ran before its last
+     * deployment, and restarts it. Nothing is uploaded or staged.
+     *
+     * @param workspace the workspace
+     * @param run the build
+     * @param listener the listener
+     * @param appName the application to roll back
+     * @return {@code true} if the application was rolled back
+     */
+    public boolean rollback(FilePath workspace, Run run, TaskListener listener, String appName) {
+        listener.getLogger().println("Cloud Foundry Plugin:");
+
+        try {
+            String expandedTarget = TokenMacro.expandAll(run, workspace, listener, target);
+            String expandedOrganization = TokenMacro.expandAll(run, workspace, listener, organization);
+            String expandedCloudSpace = TokenMacro.expandAll(run, workspace, listener, cloudSpace);
+            String expandedAppName = TokenMacro.expandAll(run, workspace, listener, appName);
+            CloudFoundryDeploymentAction.Deployment last = CloudFoundryDeploymentAction.findLatest(run, expandedTarget, expandedOrganization, expandedCloudSpace, expandedAppName);
+            if (last != null && last.strategy != null) {
+                listener.getLogger().println("ERROR: The last deployment of application " + expandedAppName + " used the "
+                    + last.strategy.getDisplayName().toLowerCase() + " deployment strategy, which replaced the application and lost its older droplets."
+                    + " Push the previous version again instead.");
+                return false;
+            }
+            Clients clients = connect(run, workspace, listener);
+            if (clients == null) {
+                listener.getLogger().println("ERROR: No credentials have been given.");
+                return false;
+            }
+            String s = TokenMacro.expandAll(run, workspace, listener, pluginTimeout);
+            long opTimeout = StringUtils.isBlank(s) ? 0 : Long.parseLong(s);
+            CloudFoundryOperations cloudFoundryOperations = clients.operations(expandedOrganization, expandedCloudSpace);
+
+            ApplicationDetail current = getApplication(cloudFoundryOperations, expandedAppName, opTimeout);
+            if (current == null) {
+                listener.getLogger().println("ERROR: Application " + expandedAppName + " does not exist.");
+                return false;
+            }
+            String currentDropletId = currentDropletId(clients.client, current.getId(), opTimeout);
+            String dropletId;
+            if (last != null && last.previousDropletId != null && Objects.equals(last.dropletId, currentDropletId)) {
+                dropletId = last.previousDropletId;
+            } else {
+                // the application was changed outside of Jenkins, ask cloudfoundry instead
+                dropletId = DropletUtils.previousDropletId(clients.client, current.getId(), currentDropletId, Duration.ofSeconds(opTimeout));
+            }
+            if (dropletId == null) {
+                listener.getLogger().println("ERROR: Application " + expandedAppName + " has no previous droplet to roll back to.");
+                return false;
+            }
+            listener.getLogger().println("Rolling back application " + expandedAppName + " from droplet " + currentDropletId + " to droplet " + dropletId);
+            StartupWait startupWait = new StartupWait(clients.client, cloudFoundryOperations, 0, Duration.ofSeconds(opTimeout), listener);
+            startupWait.runDroplet(current.getId(), dropletId, expandedAppName, startupWait.crashDetector(expandedAppName));
+            listener.getLogger().println("Application " + expandedAppName + " rolled back.");
+
+            CloudFoundryDeploymentAction.Deployment deployment = new CloudFoundryDeploymentAction.Deployment(expandedTarget, expandedOrganization, expandedCloudSpace, expandedAppName);
+            deployment.lastUploaded = lastUploaded(current);
+            deployment.dropletId = dropletId;
+            deployment.previousDropletId = currentDropletId;
+            CloudFoundryDeploymentAction.record(run, deployment);
+            return true;
+        } catch (MalformedURLException e) {
+            listener.getLogger().println("ERROR: The target URL is not valid: " + e.getMessage());
+            return false;
+        } catch (IOException e) {
+            listener.getLogger().println("ERROR: IOException: " + e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            listener.getLogger().println("ERROR: InterruptedException: " + e.getMessage());
+            return false;
+        } catch (Exception e) {
+            e.printStackTrace(listener.getLogger());
+            return false;
+        }
+    }
+
+    /**
+     * The cloudfoundry clients for one target and set of credentials.
+     */
+    static final class Clients {
+      final CloudFoundryClient client;
+      final DopplerClient dopplerClient;
+      final UaaClient uaaClient;
+
+      Clients(CloudFoundryClient client, DopplerClient dopplerClient, UaaClient uaaClient) {
+        this.client = client;
+        this.dopplerClient = dopplerClient;
+        this.uaaClient = uaaClient;
+      }
+
+      CloudFoundryOperations operations(String organization, String space) {
+        return DefaultCloudFoundryOperations.builder()
+            .cloudFoundryClient(client)
+            .dopplerClient(dopplerClient)
+            .uaaClient(uaaClient)
+            .organization(organization)
+            .space(space)
+            .build();
+      }
+    }
+
+    /**
+     * Looks up the credentials and creates the clients for the target.
+     *
+     * @return the clients, or {@code null} if no credentials were found
+     */
+    protected Clients connect(Run run, FilePath workspace, TaskListener listener) throws MalformedURLException, MacroEvaluationException, IOException, InterruptedException {
+      List<StandardUsernamePasswordCredentials> standardCredentials = CredentialsProvider.lookupCredentials(
+              StandardUsernamePasswordCredentials.class,
+              run.getParent(),
+              ACL.SYSTEM,
+              URIRequirementBuilder.fromUri(TokenMacro.expandAll(run, workspace, listener, target)).build());
+
+      StandardUsernamePasswordCredentials credentials =
+              CredentialsMatchers.firstOrNull(standardCredentials, CredentialsMatchers.withId(TokenMacro.expandAll(run, workspace, listener, credentialsId)));
+
+      if (credentials == null) {
+          return null;
+      }
+
+      ConnectionContext connectionContext = createConnectionContext(run, workspace, listener);
+
+      TokenProvider tokenProvider = PasswordGrantTokenProvider.builder()
+          .username(credentials.getUsername())
+          .password(Secret.toString(credentials.getPassword()))
+          .build();
+
+      CloudFoundryClient client = ReactorCloudFoundryClient.builder()
+          .connectionContext(connectionContext)
+          .tokenProvider(tokenProvider)
+          .build();
+
+      DopplerClient dopplerClient = ReactorDopplerClient.builder()
+          .connectionContext(connectionContext)
+          .tokenProvider(tokenProvider)
+          .build();
+
+      UaaClient uaaClient = ReactorUaaClient.builder()
+          .connectionContext(connectionContext)
+          .tokenProvider(tokenProvider)
+          .build();
+
+      return new Clients(client, dopplerClient, uaaClient);
+    }
+
+    /**
+     * The application files on the master, and the manifests loaded from them.
+     * A promotion copies no application files.
+     */
+    static final class Artifacts {
+
+      /**
+       * The temporary directory the application files were copied to from an
+       * agent, or {@code null} if they were not copied.
+       */
+      final FilePath copy;
+      final FilePath masterPath;
+      final List<ApplicationManifest> manifests;
+
+      Artifacts(FilePath copy, FilePath masterPath, List<ApplicationManifest> manifests) {
+        this.copy = copy;
+        this.masterPath = masterPath;
+        this.manifests = manifests;
+      }
+    }
+
+    /**
+     * Copies the application files to the master if the build runs on an
+     * agent, and builds the manifests validated where the workspace is
+     * against them, without parsing the manifest files again. If anything
+     * fails, or the copy is interrupted, the temporary directory is deleted
+     * before this returns.
+     */
+    private Artifacts prepareArtifacts(FilePath workspace, ManifestUtils.ValidatedManifests validated, Run run, TaskListener listener) throws IOException, InterruptedException, MacroEvaluationException {
+      FilePath masterPath = pathOnMaster(workspace);
+      if (masterPath.equals(workspace)) {
+        return new Artifacts(null, workspace, validated.resolve(workspace, false, run, workspace, listener));
+      }
+      FilePath copy = masterPath;
+      try {
+        masterPath = transferArtifactsToMaster(copy, workspace, manifestChoice, listener);
+        return new Artifacts(copy, masterPath, validated.resolve(masterPath, true, run, workspace, listener));
+      } catch (Throwable e) {
+        try {
+          deleteCopy(copy);
+        } catch (IOException deleteFailure) {
+          e.addSuppressed(deleteFailure);
+        }
+        throw e;
+      }
+    }
+
+    /**
+     * Deletes a copy of the application files. Plain file operations are used,
+     * so this also works on an interrupted thread.
+     */
+    private static void deleteCopy(FilePath copy) throws IOException {
+      Util.deleteRecursive(new File(copy.getRemote()));
+    }
+
+    /**
+     * Waits for the application files and manifests.
+     */
+    private static Artifacts join(Future<Artifacts> preparing) throws IOException, InterruptedException, MacroEvaluationException {
+      try {
+        return preparing.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof MacroEvaluationException) {
+          throw (MacroEvaluationException) cause;
+        } else if (cause instanceof InterruptedException) {
+          throw (InterruptedException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+
+    /**
+     * Deletes the copy of the application files on the master once it is
+     * finished. A copy that is still going on is waited for; it is only stopped
+     * if this thread cannot wait, and then deletes what it copied itself, as it
+     * does when it fails.
+     */
+    private static void discard(Future<Artifacts> preparing) {
+      if (preparing == null) {
+        return;
+      }
+      Artifacts artifacts;
+      try {
+        artifacts = preparing.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (preparing.cancel(true)) {
+          return;
+        }
+        // finished in the meantime, so the result is there without waiting
+        try {
+          artifacts = preparing.get(0, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | CancellationException | TimeoutException failed) {
+          return;
+        }
+      } catch (CancellationException | ExecutionException e) {
+        return; // the copy has deleted itself
+      }
+      if (artifacts.copy != null) {
+        try {
+          deleteCopy(artifacts.copy);
+        } catch (IOException e) {
+          // left for the temporary directory to be cleaned up
+        }
+      }
+    }
+
     private FilePath pathOnMaster(final FilePath path) throws IOException, InterruptedException {
       if (path.getChannel() != FilePath.localChannel) {
         // The build is distributed
@@ -237,13 +719,221 @@ public class CloudFoundryPushTask {
       return results;
     }
 
-    private void printStagingLogs(CloudFoundryOperations cloudFoundryOperations,
-                                  final TaskListener listener, String appName, final long printStagingLogsTimeout) {
-      cloudFoundryOperations.applications().logs(LogsRequest.builder().name(appName).recent(Boolean.TRUE).build())
-        .timeout(Duration.ofSeconds(printStagingLogsTimeout))
-        .doOnNext(applicationLog -> listener.getLogger().println(applicationLog.getMessage()))
-        .blockLast();
+    /**
+     * Gets the current state of an application.
+     *
+     * @return the application, or {@code null} if it does not exist
+     */
+    private ApplicationDetail getApplication(CloudFoundryOperations cloudFoundryOperations, String appName, long opTimeout) {
+      try {
+        return cloudFoundryOperations.applications().get(GetApplicationRequest.builder().name(appName).build())
+          .block(Duration.ofSeconds(opTimeout));
+      } catch (IllegalArgumentException e) {
+        // thrown by the operations api when the application does not exist
+        return null;
+      }
+    }
+
+    /**
+     * Gets the droplet an application currently runs.
+     *
+     * @return the droplet id, or {@code null} if the application was never staged
+     */
+    private static String currentDropletId(CloudFoundryClient client, String applicationId, long opTimeout) {
+      try {
+        return DropletUtils.currentDropletId(client, applicationId, Duration.ofSeconds(opTimeout));
+      } catch (ClientV3Exception e) {
+        return null;
+      }
+    }
+
+    private static Long lastUploaded(ApplicationDetail application) {
+      return application == null || application.getLastUploaded() == null ? null : application.getLastUploaded().getTime();
+    }
+
+    /**
+     * How an application already running on cloudfoundry has to be updated.
+     */
+    enum UpdateKind {
+      /**
+       * Only the scale may have changed, so the application can be scaled in place.
+       */
+      SCALE,
+      /**
+       * The bits are unchanged but the buildpack or stack is different, so the
+       * existing package can be restaged.
+       */
+      RESTAGE,
+      /**
+       * Anything else needs a full push.
+       */
+      PUSH
+    }
+
+    /**
+     * Works out how to update an application. Anything short of a full push
+     * requires that neither the bits nor the rest of the configuration have
+     * changed since the last time the application was deployed, and that
+     * nobody has uploaded other bits in the meantime. The bits are only
+     * digested when the configuration is unchanged, so after a configuration
+     * change the next push is a full one even if nothing else changes.
+     */
+    static UpdateKind updateKind(CloudFoundryDeploymentAction.Deployment previous, CloudFoundryDeploymentAction.Deployment deployment, ApplicationDetail current,
+                                 ApplicationManifest manifest) throws IOException {
+      if (previous == null || !deployment.configurationDigest.equals(previous.configurationDigest)) {
+        return UpdateKind.PUSH;
+      }
+      // digested even if the application has to be pushed anyway, so that the next push can compare against it
+      String bitsDigest = bitsDigest(deployment, manifest);
+      boolean sameBitsAndConfiguration = current != null
+          && "STARTED".equals(current.getRequestedState())
+          && previous.lastUploaded != null
+          && previous.lastUploaded.equals(lastUploaded(current))
+          && bitsDigest != null
+          && bitsDigest.equals(previous.bitsDigest);
+      if (!sameBitsAndConfiguration) {
+        return UpdateKind.PUSH;
+      }
+      if (!Objects.equals(deployment.buildpack, previous.buildpack) || !Objects.equals(deployment.stack, previous.stack)) {
+        return UpdateKind.RESTAGE;
+      }
+      return UpdateKind.SCALE;
+    }
+
+    /**
+     * Digests the bits of a deployment the first time they are needed. A
+     * deployment whose bits were never needed is recorded without a digest.
+     *
+     * @return the bits digest, or {@code null} if the manifest has no bits
+     */
+    private static String bitsDigest(CloudFoundryDeploymentAction.Deployment deployment, ApplicationManifest manifest) throws IOException {
+      if (deployment.bitsDigest == null) {
+        deployment.bitsDigest = ManifestUtils.bitsDigest(manifest);
+      }
+      return deployment.bitsDigest;
+    }
+
+    private void scaleApplication(CloudFoundryOperations cloudFoundryOperations, final TaskListener listener,
+                                  ApplicationManifest manifest, ApplicationDetail current, long opTimeout) {
+      ScaleApplicationRequest.Builder request = ScaleApplicationRequest.builder().name(manifest.getName());
+      boolean changed = false;
+      if (manifest.getInstances() != null && !manifest.getInstances().equals(current.getInstances())) {
+        request = request.instances(manifest.getInstances());
+        changed = true;
+      }
+      if (manifest.getMemory() != null && !manifest.getMemory().equals(current.getMemoryLimit())) {
+        request = request.memoryLimit(manifest.getMemory());
+        changed = true;
+      }
+      if (manifest.getDisk() != null && !manifest.getDisk().equals(current.getDiskQuota())) {
+        request = request.diskLimit(manifest.getDisk());
+        changed = true;
+      }
+      if (!changed) {
+        if (skipUnchanged) {
+          listener.getLogger().println("Application " + manifest.getName() + " is unchanged since the last push, skipping.");
+          return;
+        }
+        listener.getLogger().println("Application " + manifest.getName() + " is unchanged since the last push, restarting it.");
+        cloudFoundryOperations.applications().restart(RestartApplicationRequest.builder().name(manifest.getName()).build())
+          .timeout(Duration.ofSeconds(opTimeout))
+          .doOnError(e -> e.printStackTrace(listener.getLogger()))
+          .block();
+        return;
+      }
+      listener.getLogger().println("Only the scale of application " + manifest.getName() + " has changed, scaling instead of pushing.");
+      cloudFoundryOperations.applications().scale(request.build())
+        .timeout(Duration.ofSeconds(opTimeout))
+        .doOnError(e -> e.printStackTrace(listener.getLogger()))
+        .block();
+    }
+
+    /**
+     * Points the application at the new buildpack and stack, applying any scale
+     * changes in the same update, and restages the package that is already
+     * uploaded.
+     */
+    private void restageApplication(CloudFoundryClient client, CloudFoundryOperations cloudFoundryOperations, StartupWait startupWait, final TaskListener listener,
+                                    StagingLogStream stagingLogs, CrashLoopDetector crashes, ApplicationManifest manifest, ApplicationDetail current, long opTimeout)
+        throws InterruptedException {
+      listener.getLogger().println("Only the buildpack or stack of application " + manifest.getName() + " has changed, restaging instead of pushing.");
+      UpdateApplicationRequest.Builder request = UpdateApplicationRequest.builder()
+          .applicationId(current.getId())
+          .buildpack(manifest.getBuildpack() == null ? "" : manifest.getBuildpack()) // blank means auto-detect
+          .instances(manifest.getInstances())
+          .memory(manifest.getMemory())
+          .diskQuota(manifest.getDisk());
+      if (manifest.getStack() != null) {
+        String stackId = cloudFoundryOperations.stacks().get(GetStackRequest.builder().name(manifest.getStack()).build())
+            .map(Stack::getId)
+            .block(Duration.ofSeconds(opTimeout));
+        request = request.stackId(stackId);
+      }
+      client.applicationsV2().update(request.build())
+        .timeout(Duration.ofSeconds(opTimeout))
+        .block();
+      startupWait.restage(current.getId(), manifest, stagingLogs, crashes);
+    }
+
+    /**
+     * Copies the current droplet of the source application to the target
+     * application, applies the manifest's scale settings and restarts the
+     * target with the copied droplet. Nothing is uploaded or staged. The
+     * droplets involved are recorded in the deployment.
+     */
+    private void promoteApplication(CloudFoundryClient client, CloudFoundryOperations cloudFoundryOperations, CloudFoundryOperations sourceOperations,
+                                    final TaskListener listener, ApplicationManifest manifest, String sourceAppName,
+                                    CloudFoundryDeploymentAction.Deployment deployment, long opTimeout) throws InterruptedException {
+      Duration timeout = Duration.ofSeconds(opTimeout);
+      ApplicationDetail source = getApplication(sourceOperations, sourceAppName, opTimeout);
+      if (source == null) {
+        throw new IllegalArgumentException("Source application " + sourceAppName + " does not exist.");
+      }
+      ApplicationDetail current = getApplication(cloudFoundryOperations, manifest.getName(), opTimeout);
+      if (current == null) {
+        throw new IllegalArgumentException("Application " + manifest.getName() + " does not exist. It must be pushed once before droplets can be promoted to it.");
+      }
+      deployment.previousDropletId = currentDropletId(client, current.getId(), opTimeout);
+      String sourceDropletId = DropletUtils.currentDropletId(client, source.getId(), timeout);
+      listener.getLogger().println("Promoting droplet " + sourceDropletId + " of application " + sourceAppName + " to application " + manifest.getName());
+      String dropletId = DropletUtils.copyDroplet(client, sourceDropletId, current.getId(), timeout);
+      DropletUtils.setCurrentDroplet(client, current.getId(), dropletId, timeout);
+      client.applicationsV2().update(UpdateApplicationRequest.builder()
+          .applicationId(current.getId())
+          .instances(manifest.getInstances())
+          .memory(manifest.getMemory())
+          .diskQuota(manifest.getDisk())
+          .build())
+        .timeout(timeout)
+        .block();
+      cloudFoundryOperations.applications().restart(RestartApplicationRequest.builder().name(manifest.getName()).build())
+        .timeout(timeout)
+        .doOnError(e -> e.printStackTrace(listener.getLogger()))
+        .block();
+      listener.getLogger().println("Application " + manifest.getName() + " is now running droplet " + dropletId);
+      deployment.dropletId = dropletId;
+      deployment.lastUploaded = lastUploaded(getApplication(cloudFoundryOperations, manifest.getName(), opTimeout));
+    }
 
+    /**
+     * Sets up an application whose bits are identical to those of an
+     * application deployed earlier in this push, and copies that application's
+     * package server-side instead of uploading the same bits again.
+     */
+    private void copyPackage(ApplicationSetup applicationSetup, CloudFoundryOperations cloudFoundryOperations, StartupWait startupWait, final TaskListener listener,
+                             StagingLogStream stagingLogs, CrashLoopDetector crashes, String sourceAppName, ApplicationManifest manifest, long opTimeout)
+        throws InterruptedException {
+      listener.getLogger().println("Application " + manifest.getName() + " has the same bits as " + sourceAppName + ", copying its package instead of uploading.");
+      String applicationId = applicationSetup.configure(manifest);
+      cloudFoundryOperations.applications().copySource(CopySourceApplicationRequest.builder()
+          .name(sourceAppName)
+          .targetName(manifest.getName())
+          .build())
+        .then(cloudFoundryOperations.applications().stop(StopApplicationRequest.builder().name(manifest.getName()).build()))
+        .timeout(Duration.ofSeconds(opTimeout))
+        .doOnError(e -> e.printStackTrace(listener.getLogger()))
+        .block();
+      startupWait.start(applicationId, manifest, stagingLogs, crashes);
     }
 
     private static final Pattern TARGET_PATTERN = Pattern.compile("((?<scheme>https?)://)?(?<targetFqdn>[^:/]+)(:(?<port>\\d+))?(/.*)?");
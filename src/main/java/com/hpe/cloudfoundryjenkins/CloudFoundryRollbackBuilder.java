@@ -0,0 +1,178 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.Builder;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import jenkins.tasks.SimpleBuildStep;
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Jenkins build step that rolls a CloudFoundry application back to the droplet
+ * it ran before its last deployment.
+ */
+public class CloudFoundryRollbackBuilder extends Builder implements SimpleBuildStep {
+
+  /**
+   * The cloudfoundry api target.
+   */
+  public String target;
+
+  /**
+   * The cloudfoundry organization.
+   */
+  public String organization;
+
+  /**
+   * The cloudfoundry space.
+   */
+  public String cloudSpace;
+
+  /**
+   * The jenkins credentials id for cloudfoundry.
+   */
+  public String credentialsId;
+
+  /**
+   * The application to roll back.
+   */
+  public String appName;
+
+  /**
+   * Whether to ignore ssl validation errors.
+   */
+  public String selfSigned = "false";
+
+  /**
+   * Timeout for all cloudfoundry api calls.
+   */
+  public String pluginTimeout = String.valueOf(CloudFoundryUtils.DEFAULT_PLUGIN_TIMEOUT);
+
+  /**
+   * Creates a new CloudFoundryRollbackBuilder.
+   *
+   * @param target the cloudfoundry api target
+   * @param organization the cloudfoundry organization
+   * @param cloudSpace the cloudfoundry space
+   * @param credentialsId the credentials to use
+   * @param appName the application to roll back
+   */
+  @DataBoundConstructor
+  public CloudFoundryRollbackBuilder(String target, String organization, String cloudSpace,
+          String credentialsId, String appName) {
+    this.target = target;
+    this.organization = organization;
+    this.cloudSpace = cloudSpace;
+    this.credentialsId = credentialsId;
+    this.appName = appName;
+  }
+
+  /**
+   * @return {@code true} if ssl validation errors should be ignored.
+   */
+  public String isSelfSigned() {
+    return selfSigned;
+  }
+
+  /**
+   * @param selfSigned {@code true} to ignore ssl validation errors
+   */
+  @DataBoundSetter
+  public void setSelfSigned(String selfSigned) {
+    this.selfSigned = selfSigned;
+  }
+
+  /**
+   * @return the plugin timeout
+   */
+  public String getPluginTimeout() {
+    return pluginTimeout;
+  }
+
+  /**
+   * @param pluginTimeout the timeout for cloudfoundry api calls
+   */
+  @DataBoundSetter
+  public void setPluginTimeout(String pluginTimeout) {
+    if (pluginTimeout == null) {
+      this.pluginTimeout = String.valueOf(CloudFoundryUtils.DEFAULT_PLUGIN_TIMEOUT);
+    } else {
+      try {
+        int i = Integer.parseInt(pluginTimeout);
+        if (i <= 0) {
+          this.pluginTimeout = String.valueOf(CloudFoundryUtils.DEFAULT_PLUGIN_TIMEOUT);
+        } else {
+          this.pluginTimeout = pluginTimeout;
+        }
+      } catch (NumberFormatException ignored) {
+        this.pluginTimeout = pluginTimeout;
+      }
+    }
+  }
+
+  @Override
+  public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+    return createTask().rollback(build.getWorkspace(), build, listener, appName);
+  }
+
+  @Override
+  public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
+    if (!createTask().rollback(workspace, run, listener, appName)) {
+      throw new AbortException("CloudFoundry Rollback failed.");
+    }
+  }
+
+  private CloudFoundryPushTask createTask() {
+    return new CloudFoundryPushTask(target, organization, cloudSpace, credentialsId, selfSigned, pluginTimeout,
+            Collections.emptyList(), CloudFoundryPushPublisher.ManifestChoice.defaultManifestFileConfig());
+  }
+
+  @Override
+  public boolean prebuild(AbstractBuild<?, ?> build, BuildListener listener) {
+    return true; // per SimpleBuildStep javadoc
+  }
+
+  @Override
+  public Action getProjectAction(AbstractProject<?, ?> project) {
+    return null; // per SimpleBuildStep javadoc
+  }
+
+  @Override
+  public Collection<? extends Action> getProjectActions(AbstractProject<?, ?> project) {
+    return Collections.emptySet(); // per SimpleBuildStep javadoc
+  }
+
+  @Override
+  public BuildStepMonitor getRequiredMonitorService() {
+    return BuildStepMonitor.NONE; // per SimpleBuildStep javadoc
+  }
+
+  /**
+   * Step descriptor.
+   */
+  @Symbol("cfRollback")
+  @Extension
+  public static final class DescriptorImpl extends AbstractCloudFoundryPushDescriptor<Builder> {
+
+    @Override
+    public String getDisplayName() {
+      return "Roll back a Cloud Foundry application";
+    }
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.applications.ApplicationDetail;
+import org.cloudfoundry.operations.applications.ApplicationEvent;
+import org.cloudfoundry.operations.applications.GetApplicationEventsRequest;
+import org.cloudfoundry.operations.applications.GetApplicationRequest;
+import org.cloudfoundry.operations.applications.LogsRequest;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Notices an application that keeps crashing while it starts, so that the
+ * push can fail right away instead of waiting for the whole start timeout.
+ * Crashes are counted from the application's {@code app.crash} events, per
+ * instance index, so several instances that are down at the same time are not
+ * mistaken for one instance crashing again and again; once an instance has
+ * crashed as often as the threshold, the push fails with the reason of its
+ * last crash and the last lines of the application's logs.
+ *
+ * <p>Crash events that already existed the first time the application is
+ * checked belong to an earlier deployment and are not counted.</p>
+ */
+public class CrashLoopDetector {
+
+  /**
+   * The default number of crashes after which a start is given up.
+   */
+  static final int DEFAULT_THRESHOLD = 3;
+
+  /**
+   * How many of the last log lines to include in the failure.
+   */
+  static final int LOG_LINES = 20;
+
+  /**
+   * How long to wait between checks while watching a push.
+   */
+  private static final long POLL_INTERVAL_MILLIS = 2000;
+
+  /**
+   * How many of the newest events to look at; more crashes than this are
+   * beyond any sensible threshold.
+   */
+  private static final int MAX_EVENTS = 50;
+
+  private static final String CRASH_EVENT = "app.crash";
+
+  /**
+   * The instance index in the description of a crash event, which lists the
+   * event's metadata as {@code key: value} pairs.
+   */
+  private static final Pattern INSTANCE_INDEX = Pattern.compile("\\bindex: (\\d+)");
+
+  private final CloudFoundryOperations cloudFoundryOperations;
+  private final String appName;
+  private final int threshold;
+  private final Duration timeout;
+  private Set<String> earlierCrashes;
+
+  /**
+   * @param cloudFoundryOperations the cloudfoundry operations
+   * @param appName the application, which does not have to exist yet
+   * @param threshold the number of crashes after which to give up, zero for
+   * {@link #DEFAULT_THRESHOLD}, or less than zero to never give up early
+   * @param timeout the timeout of each request
+   */
+  CrashLoopDetector(CloudFoundryOperations cloudFoundryOperations, String appName, int threshold, Duration timeout) {
+    this.cloudFoundryOperations = cloudFoundryOperations;
+    this.appName = appName;
+    this.threshold = threshold == 0 ? DEFAULT_THRESHOLD : threshold;
+    this.timeout = timeout;
+  }
+
+  /**
+   * Makes a push fail as soon as the application is crash-looping, instead of
+   * when the push gives up waiting for it to start. The application is checked
+   * in the background until the push finishes.
+   *
+   * @param push the push
+   * @param <T> the push result type
+   * @return the push, failing early on a crash loop
+   */
+  @SuppressWarnings("unchecked")
+  <T> Mono<T> watch(Mono<T> push) {
+    if (threshold <= 0) {
+      return push;
+    }
+    AtomicBoolean stopped = new AtomicBoolean();
+    Mono<Void> watcher = Mono.fromCallable(() -> {
+      while (!stopped.get()) {
+        TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+        if (!stopped.get()) {
+          check();
+        }
+      }
+      return true;
+    })
+            .subscribeOn(Schedulers.elastic())
+            .doOnCancel(() -> stopped.set(true))
+            .then();
+    // the watcher only ever completes once it has been cancelled
+    return Mono.first(push, (Mono<T>) (Mono<?>) watcher);
+  }
+
+  /**
+   * Checks the application once, doing nothing if it does not exist yet.
+   *
+   * @throws IllegalStateException if the application is crash-looping
+   */
+  void check() {
+    ApplicationDetail detail;
+    try {
+      detail = cloudFoundryOperations.applications().get(GetApplicationRequest.builder().name(appName).build())
+              .block(timeout);
+    } catch (IllegalArgumentException e) {
+      return; // not created yet
+    }
+    check(detail.getInstanceDetails().stream()
+            .filter(instance -> "CRASHED".equals(instance.getState()))
+            .count());
+  }
+
+  /**
+   * Checks the application, given its instances as seen by the caller. The
+   * events are only looked at on the first check, to tell the crashes of
+   * earlier deployments apart, and while an instance is crashed, so a
+   * healthy start costs a single events request.
+   *
+   * @param crashedInstances the number of instances that are crashed now,
+   * which only decides whether the events are looked at
+   * @throws IllegalStateException if the application is crash-looping
+   */
+  void check(long crashedInstances) {
+    if (threshold <= 0) {
+      return;
+    }
+    List<ApplicationEvent> crashes;
+    synchronized (this) {
+      if (earlierCrashes != null && crashedInstances == 0) {
+        return;
+      }
+      crashes = crashEvents();
+      if (earlierCrashes == null) {
+        earlierCrashes = crashes.stream().map(ApplicationEvent::getId).collect(Collectors.toCollection(HashSet::new));
+      }
+      crashes.removeIf(event -> earlierCrashes.contains(event.getId()));
+    }
+    // events are newest first, so the first event of an instance is its last crash
+    Map<String, List<ApplicationEvent>> byInstance = new LinkedHashMap<>();
+    for (ApplicationEvent crash : crashes) {
+      byInstance.computeIfAbsent(instanceIndex(crash), index -> new ArrayList<>()).add(crash);
+    }
+    Map.Entry<String, List<ApplicationEvent>> worst = null;
+    for (Map.Entry<String, List<ApplicationEvent>> instance : byInstance.entrySet()) {
+      if (worst == null || instance.getValue().size() > worst.getValue().size()) {
+        worst = instance;
+      }
+    }
+    if (worst == null || worst.getValue().size() < threshold) {
+      return;
+    }
+    StringBuilder message = new StringBuilder("Application ").append(appName);
+    if (worst.getKey() != null) {
+      message.append(" instance ").append(worst.getKey());
+    }
+    message.append(" crashed ").append(worst.getValue().size())
+            .append(" times while starting, giving up. Last crash: ").append(worst.getValue().get(0).getDescription());
+    List<String> lines = lastLogLines();
+    if (!lines.isEmpty()) {
+      message.append("\nLast ").append(lines.size()).append(" log lines:");
+      lines.forEach(line -> message.append("\n  ").append(line));
+    }
+    throw new IllegalStateException(message.toString());
+  }
+
+  /**
+   * @return the index of the instance a crash event is about, or {@code null}
+   * if the event does not say
+   */
+  static String instanceIndex(ApplicationEvent crash) {
+    if (crash.getDescription() == null) {
+      return null;
+    }
+    Matcher matcher = INSTANCE_INDEX.matcher(crash.getDescription());
+    return matcher.find() ? matcher.group(1) : null;
+  }
+
+  /**
+   * The newest crash events of the application, newest first.
+   */
+  private List<ApplicationEvent> crashEvents() {
+    return cloudFoundryOperations.applications()
+            .getEvents(GetApplicationEventsRequest.builder().name(appName).maxNumberOfEvents(MAX_EVENTS).build())
+            .filter(event -> CRASH_EVENT.equals(event.getEvent()))
+            .collectList()
+            .block(timeout);
+  }
+
+  /**
+   * The newest lines of the application's recent logs, oldest first.
+   */
+  private List<String> lastLogLines() {
+    try {
+      List<LogMessage> logs = cloudFoundryOperations.applications()
+              .logs(LogsRequest.builder().name(appName).recent(true).build())
+              .collectSortedList(Comparator.comparing(LogMessage::getTimestamp))
+              .block(timeout);
+      return logs.subList(Math.max(0, logs.size() - LOG_LINES), logs.size()).stream()
+              .map(log -> "[" + log.getSourceType() + "/" + log.getSourceInstance() + "] " + log.getMessage())
+              .collect(Collectors.toList());
+    } catch (RuntimeException e) {
+      return Collections.emptyList();
+    }
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+/**
+ * How a new version of an application replaces the running one.
+ */
+public enum DeploymentStrategy {
+
+  /**
+   * Push over the running application, which is down while it is staged and
+   * restarted. This is what {@code cf push} does.
+   */
+  STOP_AND_PUSH("Stop and push"),
+
+  /**
+   * Push the new version beside the running one under a temporary name and
+   * route, and move the routes over once it is healthy.
+   */
+  BLUE_GREEN("Blue-green"),
+
+  /**
+   * Push the new version beside the running one with a single instance, and
+   * replace the running instances one at a time.
+   */
+  ROLLING("Rolling");
+
+  private final String displayName;
+
+  DeploymentStrategy(String displayName) {
+    this.displayName = displayName;
+  }
+
+  public String getDisplayName() {
+    return displayName;
+  }
+}
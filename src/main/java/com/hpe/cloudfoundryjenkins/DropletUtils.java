@@ -0,0 +1,155 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v3.Relationship;
+import org.cloudfoundry.client.v3.ToOneRelationship;
+import org.cloudfoundry.client.v3.applications.GetApplicationCurrentDropletRequest;
+import org.cloudfoundry.client.v3.applications.GetApplicationCurrentDropletResponse;
+import org.cloudfoundry.client.v3.applications.ListApplicationDropletsRequest;
+import org.cloudfoundry.client.v3.applications.ListApplicationDropletsResponse;
+import org.cloudfoundry.client.v3.applications.SetApplicationCurrentDropletRequest;
+import org.cloudfoundry.client.v3.applications.StartApplicationRequest;
+import org.cloudfoundry.client.v3.applications.StopApplicationRequest;
+import org.cloudfoundry.client.v3.droplets.CopyDropletRequest;
+import org.cloudfoundry.client.v3.droplets.CopyDropletResponse;
+import org.cloudfoundry.client.v3.droplets.DropletRelationships;
+import org.cloudfoundry.client.v3.droplets.DropletResource;
+import org.cloudfoundry.client.v3.droplets.DropletState;
+import org.cloudfoundry.client.v3.droplets.GetDropletRequest;
+import org.cloudfoundry.client.v3.droplets.GetDropletResponse;
+
+/**
+ * Utility methods for dealing with droplets through the v3 API.
+ */
+public class DropletUtils {
+
+  /**
+   * How long to wait between checks of an asynchronous droplet operation.
+   */
+  private static final long POLL_INTERVAL_MILLIS = 1000;
+
+  /**
+   * Gets the droplet an application currently runs.
+   *
+   * @param client the cloudfoundry client
+   * @param applicationId the application id
+   * @param timeout the timeout
+   * @return the droplet id
+   */
+  public static String currentDropletId(CloudFoundryClient client, String applicationId, Duration timeout) {
+    return client.applicationsV3().getCurrentDroplet(GetApplicationCurrentDropletRequest.builder()
+            .applicationId(applicationId)
+            .build())
+            .map(GetApplicationCurrentDropletResponse::getId)
+            .block(timeout);
+  }
+
+  /**
+   * Copies a droplet to another application, and waits for the copy to be
+   * ready. The copy is not made current.
+   *
+   * @param client the cloudfoundry client
+   * @param dropletId the droplet to copy
+   * @param targetApplicationId the application to copy it to
+   * @param timeout the timeout for the whole copy
+   * @return the id of the new droplet
+   * @throws InterruptedException if interrupted while waiting for the copy
+   */
+  public static String copyDroplet(CloudFoundryClient client, String dropletId, String targetApplicationId, Duration timeout) throws InterruptedException {
+    long deadline = System.nanoTime() + timeout.toNanos();
+    String copyId = client.droplets().copy(CopyDropletRequest.builder()
+            .sourceDropletId(dropletId)
+            .relationships(DropletRelationships.builder()
+                    .application(ToOneRelationship.builder()
+                            .data(Relationship.builder().id(targetApplicationId).build())
+                            .build())
+                    .build())
+            .build())
+            .map(CopyDropletResponse::getId)
+            .block(timeout);
+    while (true) {
+      DropletState state = client.droplets().get(GetDropletRequest.builder().dropletId(copyId).build())
+              .map(GetDropletResponse::getState)
+              .block(timeout);
+      if (state == DropletState.STAGED) {
+        return copyId;
+      }
+      if (state == DropletState.FAILED || state == DropletState.EXPIRED) {
+        throw new IllegalStateException("Copy of droplet " + dropletId + " ended in state " + state);
+      }
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException("Timed out waiting for copy of droplet " + dropletId);
+      }
+      TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+    }
+  }
+
+  /**
+   * Finds the droplet an application ran before its current droplet: the most
+   * recent staged droplet created before the current one.
+   *
+   * @param client the cloudfoundry client
+   * @param applicationId the application id
+   * @param currentDropletId the current droplet id
+   * @param timeout the timeout
+   * @return the droplet id, or {@code null} if the application has no older droplet
+   */
+  public static String previousDropletId(CloudFoundryClient client, String applicationId, String currentDropletId, Duration timeout) {
+    List<DropletResource> droplets = new ArrayList<>(client.applicationsV3().listDroplets(ListApplicationDropletsRequest.builder()
+            .applicationId(applicationId)
+            .build())
+            .map(ListApplicationDropletsResponse::getResources)
+            .block(timeout));
+    droplets.sort(Comparator.comparing(DropletResource::getCreatedAt).reversed());
+    boolean seenCurrent = droplets.stream().noneMatch(droplet -> droplet.getId().equals(currentDropletId));
+    for (DropletResource droplet : droplets) {
+      if (droplet.getId().equals(currentDropletId)) {
+        seenCurrent = true;
+      } else if (seenCurrent && droplet.getState() == DropletState.STAGED) {
+        return droplet.getId();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Makes a droplet current and (re)starts the application with it.
+   *
+   * @param client the cloudfoundry client
+   * @param applicationId the application id
+   * @param dropletId the droplet to run
+   * @param timeout the timeout
+   */
+  public static void runDroplet(CloudFoundryClient client, String applicationId, String dropletId, Duration timeout) {
+    setCurrentDroplet(client, applicationId, dropletId, timeout);
+    client.applicationsV3().stop(StopApplicationRequest.builder().applicationId(applicationId).build())
+            .block(timeout);
+    client.applicationsV3().start(StartApplicationRequest.builder().applicationId(applicationId).build())
+            .block(timeout);
+  }
+
+  /**
+   * Makes a droplet the current droplet of an application. Running instances
+   * keep the old droplet until the application is restarted.
+   *
+   * @param client the cloudfoundry client
+   * @param applicationId the application id
+   * @param dropletId the droplet id
+   * @param timeout the timeout
+   */
+  public static void setCurrentDroplet(CloudFoundryClient client, String applicationId, String dropletId, Duration timeout) {
+    client.applicationsV3().setCurrentDroplet(SetApplicationCurrentDropletRequest.builder()
+            .applicationId(applicationId)
+            .data(Relationship.builder().id(dropletId).build())
+            .build())
+            .block(timeout);
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+
+/**
+ * Opens the {@link StagingLogStream} of every application pushed by a build,
+ * sending the logs either to the console or to one {@link ApplicationLogFile}
+ * per application.
+ */
+public class LogCapture {
+
+  private final Run<?, ?> run;
+  private final boolean toFiles;
+  private final RecentLogs recentLogs;
+  private final List<Pattern> failurePatterns;
+  private final BatchingLogWriter writer;
+
+  /**
+   * @param run the build
+   * @param toFiles {@code true} to write each application's logs to its own file
+   * @param recentLogs how much of the recent logs to print if nothing was streamed
+   * @param failurePatterns staging log lines that mean staging has failed
+   * @param writer the writer of the push, which every stream prints through
+   */
+  LogCapture(Run<?, ?> run, boolean toFiles, RecentLogs recentLogs, List<Pattern> failurePatterns, BatchingLogWriter writer) {
+    this.run = run;
+    this.toFiles = toFiles;
+    this.recentLogs = recentLogs;
+    this.failurePatterns = failurePatterns;
+    this.writer = writer;
+  }
+
+  /**
+   * Starts streaming the logs of an application.
+   *
+   * @param cloudFoundryOperations the cloudfoundry operations
+   * @param listener the build listener
+   * @param appName the application, which does not have to exist yet
+   * @param prefixed whether to prefix console lines with the application name
+   * @return the stream, which must be closed once the push has finished
+   */
+  StagingLogStream open(CloudFoundryOperations cloudFoundryOperations, TaskListener listener, String appName, boolean prefixed) {
+    ApplicationLogFile file = null;
+    if (toFiles) {
+      try {
+        file = ApplicationLogFile.create(run, appName);
+      } catch (IOException e) {
+        listener.getLogger().println("WARNING: could not create the log file of " + appName + ", logging to the console: " + e.getMessage());
+      }
+    }
+    return StagingLogStream.open(cloudFoundryOperations, listener, writer, appName, prefixed, recentLogs, file, failurePatterns);
+  }
+}
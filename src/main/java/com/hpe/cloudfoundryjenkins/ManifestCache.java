@@ -0,0 +1,161 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.Util;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the applications read from recent manifests, so that pushing the
+ * same manifest again, for example to several spaces or from another build,
+ * does not parse it again. An entry is found by the manifest's name relative to
+ * the application files, its raw content, the values of the macros it
+ * references and the variables of its placeholders, and is only used while the
+ * manifests it inherits are unchanged. The absolute location is not part of
+ * the key: a build on an agent reads its manifests from a workspace that may
+ * differ from build to build. The entries hold the attributes of the
+ * applications, whose relative paths are only resolved when the manifests are
+ * built, so an entry can be used at another location as long as the manifests
+ * it inherits lie below the manifest's directory. The least recently used
+ * entries are dropped once there are {@link #MAX_ENTRIES}.
+ */
+public class ManifestCache {
+
+  /**
+   * The most manifests remembered at once.
+   */
+  static final int MAX_ENTRIES = 64;
+
+  private static final Map<String, Entry> ENTRIES = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  private ManifestCache() {
+  }
+
+  /**
+   * Reads the applications of a manifest, or returns the ones read from it
+   * before.
+   *
+   * @param location where the manifest was read from
+   * @param name the name of the manifest relative to the application files
+   * @param raw the manifest as read, before macro expansion
+   * @param expansions the macro references of the manifest and their values
+   * @param expanded the manifest after macro expansion
+   * @param vars the variables of the manifest's placeholders
+   * @return the attributes of each application, which must not be changed
+   * @throws IOException if an inherited manifest cannot be read
+   * @see ManifestParser#applications
+   */
+  static List<Map<String, Object>> applications(Path location, String name, String raw, Map<String, String> expansions, String expanded,
+          Map<String, Object> vars) throws IOException {
+    String key = key(name, raw, expansions, vars);
+    Path directory = location.toAbsolutePath().normalize().getParent();
+    Entry entry;
+    synchronized (ENTRIES) {
+      entry = ENTRIES.get(key);
+    }
+    if (entry != null && entry.isCurrent(directory)) {
+      return entry.applications;
+    }
+    List<Path> inherited = new ArrayList<>();
+    List<Map<String, Object>> applications = Collections.unmodifiableList(ManifestParser.applications(expanded, location, inherited, vars));
+    Map<Path, String> inheritedDigests = new LinkedHashMap<>();
+    for (Path path : inherited) {
+      inheritedDigests.put(path, digest(path));
+    }
+    synchronized (ENTRIES) {
+      ENTRIES.put(key, new Entry(applications, directory, inheritedDigests));
+    }
+    return applications;
+  }
+
+  /**
+   * Forgets every manifest.
+   */
+  static void clear() {
+    synchronized (ENTRIES) {
+      ENTRIES.clear();
+    }
+  }
+
+  private static String key(String name, String raw, Map<String, String> expansions, Map<String, Object> vars) {
+    MessageDigest digest = ManifestUtils.newDigest();
+    digest.update(name.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(raw.getBytes(StandardCharsets.UTF_8));
+    for (Map.Entry<String, String> expansion : expansions.entrySet()) {
+      digest.update((byte) 0);
+      digest.update(expansion.getKey().getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(expansion.getValue().getBytes(StandardCharsets.UTF_8));
+    }
+    if (!vars.isEmpty()) {
+      digest.update((byte) 0);
+      digest.update(vars.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    return Util.toHexString(digest.digest());
+  }
+
+  private static String digest(Path path) throws IOException {
+    return Util.toHexString(ManifestUtils.newDigest().digest(Files.readAllBytes(path)));
+  }
+
+  private static final class Entry {
+
+    final List<Map<String, Object>> applications;
+
+    /**
+     * The directory of the manifest that was parsed.
+     */
+    final Path directory;
+    final Map<Path, String> inheritedDigests;
+
+    /**
+     * Whether every inherited manifest lies below {@link #directory}, so that
+     * the entry can be used at another location.
+     */
+    final boolean relocatable;
+
+    Entry(List<Map<String, Object>> applications, Path directory, Map<Path, String> inheritedDigests) {
+      this.applications = applications;
+      this.directory = directory;
+      this.inheritedDigests = inheritedDigests;
+      this.relocatable = inheritedDigests.keySet().stream().allMatch(path -> path.startsWith(directory));
+    }
+
+    /**
+     * Whether the entry can be used for a manifest in a directory, and the
+     * inherited manifests there are still the ones that were parsed.
+     */
+    boolean isCurrent(Path newDirectory) {
+      if (!directory.equals(newDirectory) && !relocatable) {
+        return false;
+      }
+      try {
+        for (Map.Entry<Path, String> inherited : inheritedDigests.entrySet()) {
+          Path path = newDirectory.resolve(directory.relativize(inherited.getKey()));
+          if (!inherited.getValue().equals(digest(path))) {
+            return false;
+          }
+        }
+        return true;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,330 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.cloudfoundry.operations.applications.ApplicationHealthCheck;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.operations.applications.Docker;
+import org.cloudfoundry.operations.applications.Route;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+
+/**
+ * Reads manifests from memory, the way
+ * {@link org.cloudfoundry.operations.applications.ApplicationManifestUtils}
+ * reads them from a file. Top-level attributes apply to every application
+ * unless the application sets them itself. A manifest named in
+ * {@code inherit} is read first and overridden by the inheriting one. Both
+ * {@code inherit} and a relative {@code path} are resolved against the
+ * location the manifest was read from, so an expanded manifest never has to be
+ * written next to the original.
+ *
+ * <p>Manifests are loaded as plain YAML, so tags cannot make them construct
+ * arbitrary Java objects, and an attribute of the wrong shape fails with an
+ * {@link IllegalArgumentException} naming the attribute.</p>
+ */
+public class ManifestParser {
+
+  /**
+   * The application attributes {@link #toManifest} reads, which are those
+   * {@link org.cloudfoundry.operations.applications.ApplicationManifestUtils}
+   * reads.
+   */
+  private static final Set<String> ATTRIBUTES = new HashSet<>(Arrays.asList("name", "buildpack", "command", "disk_quota",
+          "memory", "instances", "timeout", "stack", "path", "docker", "domain", "domains", "host", "hosts", "routes",
+          "route-path", "no-hostname", "no-route", "random-route", "health-check-type", "health-check-http-endpoint", "env",
+          "services"));
+
+  private ManifestParser() {
+  }
+
+  /**
+   * Parses a manifest.
+   *
+   * @param yaml the manifest
+   * @param location where the manifest was read from, for resolving
+   * {@code inherit} and relative paths
+   * @return the applications of the manifest
+   * @throws IOException if an inherited manifest cannot be read
+   */
+  static List<ApplicationManifest> parse(String yaml, Path location) throws IOException {
+    return parse(yaml, location, new ArrayList<>());
+  }
+
+  /**
+   * Parses a manifest, recording the manifests it inherits.
+   *
+   * @param yaml the manifest
+   * @param location where the manifest was read from, for resolving
+   * {@code inherit} and relative paths
+   * @param inherited where to add the locations of the inherited manifests
+   * @return the applications of the manifest
+   * @throws IOException if an inherited manifest cannot be read
+   */
+  static List<ApplicationManifest> parse(String yaml, Path location, List<Path> inherited) throws IOException {
+    return parse(yaml, location, inherited, Collections.emptyMap());
+  }
+
+  /**
+   * Parses a manifest, recording the manifests it inherits and resolving its
+   * {@code ((name))} placeholders.
+   *
+   * @param yaml the manifest
+   * @param location where the manifest was read from, for resolving
+   * {@code inherit} and relative paths
+   * @param inherited where to add the locations of the inherited manifests
+   * @param vars the variables of the placeholders, which may be empty; a
+   * placeholder without a variable fails either way
+   * @return the applications of the manifest
+   * @throws IOException if an inherited manifest cannot be read
+   * @throws IllegalArgumentException if the manifest is invalid or inherits
+   * itself
+   * @see ManifestVariables
+   */
+  static List<ApplicationManifest> parse(String yaml, Path location, List<Path> inherited, Map<String, Object> vars) throws IOException {
+    Path directory = location.toAbsolutePath().normalize().getParent();
+    List<ApplicationManifest> manifests = new ArrayList<>();
+    for (Map<String, Object> attributes : applications(yaml, location, inherited, vars)) {
+      manifests.add(toManifest(attributes, directory));
+    }
+    return manifests;
+  }
+
+  /**
+   * Reads the attributes of each application of a manifest, with the
+   * top-level and inherited attributes merged in, but does not interpret
+   * them. The attributes are plain maps, lists and scalars, so they can be
+   * sent from an agent, and a relative {@code path} is left as written, to be
+   * resolved by {@link #toManifest} against wherever the application files
+   * are.
+   *
+   * @param yaml the manifest
+   * @param location where the manifest was read from, for resolving
+   * {@code inherit}
+   * @param inherited where to add the locations of the inherited manifests
+   * @param vars the variables of the placeholders
+   * @return the attributes of each application
+   * @throws IOException if an inherited manifest cannot be read
+   * @throws IllegalArgumentException if the manifest is invalid or inherits
+   * itself
+   */
+  static List<Map<String, Object>> applications(String yaml, Path location, List<Path> inherited, Map<String, Object> vars) throws IOException {
+    Path absoluteLocation = location.toAbsolutePath().normalize();
+    Set<Path> visited = new HashSet<>();
+    visited.add(absoluteLocation);
+    Map<String, Object> root = deserialize(yaml, absoluteLocation, inherited, vars, visited);
+    Object applications = root.remove("applications");
+    if (applications == null) {
+      return Collections.emptyList();
+    }
+    if (!(applications instanceof List)) {
+      throw new IllegalArgumentException("The applications of manifest " + location + " are not a list.");
+    }
+    List<Map<String, Object>> merged = new ArrayList<>();
+    for (Object application : (List<?>) applications) {
+      Map<String, Object> attributes = new LinkedHashMap<>(root);
+      attributes.remove("inherit");
+      attributes.putAll(asMap(application == null ? Collections.emptyMap() : application, "application"));
+      if (root.get("env") instanceof Map && attributes.get("env") != root.get("env")) {
+        Map<String, Object> env = new LinkedHashMap<>(asMap(root.get("env"), "env"));
+        env.putAll(asMap(attributes.get("env"), "env"));
+        attributes.put("env", env);
+      }
+      merged.add(attributes);
+    }
+    return merged;
+  }
+
+  /**
+   * Reads a manifest and everything it inherits into one map.
+   *
+   * @param visited the locations of the manifests read so far, to stop an
+   * {@code inherit} that leads back to one of them
+   */
+  private static Map<String, Object> deserialize(String yaml, Path location, List<Path> inherited, Map<String, Object> vars,
+          Set<Path> visited) throws IOException {
+    Object loaded = new Yaml(new SafeConstructor()).load(yaml);
+    if (yaml.contains("((")) {
+      loaded = ManifestVariables.resolve(loaded, vars);
+    }
+    Map<String, Object> root = new LinkedHashMap<>(asMap(loaded == null ? Collections.emptyMap() : loaded, "manifest"));
+    Object inherit = root.get("inherit");
+    if (inherit == null) {
+      return root;
+    }
+    Path parentLocation = location.getParent().resolve(inherit.toString()).normalize();
+    if (!visited.add(parentLocation)) {
+      throw new IllegalArgumentException("Manifest " + location + " inherits " + parentLocation
+              + ", which was already read: the manifests inherit each other in a loop.");
+    }
+    inherited.add(parentLocation);
+    Map<String, Object> merged = deserialize(new String(Files.readAllBytes(parentLocation), StandardCharsets.UTF_8), parentLocation,
+            inherited, vars, visited);
+    merged.putAll(root);
+    return merged;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> asMap(Object value, String what) {
+    if (!(value instanceof Map)) {
+      throw new IllegalArgumentException("The " + what + " is not a map: " + value);
+    }
+    return (Map<String, Object>) value;
+  }
+
+  /**
+   * Builds the manifest of one application.
+   *
+   * @param attributes the attributes of the application, as read by
+   * {@link #applications}
+   * @param directory the directory a relative {@code path} is resolved against
+   * @return the manifest
+   * @throws IllegalArgumentException if an attribute is invalid
+   */
+  static ApplicationManifest toManifest(Map<String, Object> attributes, Path directory) {
+    ApplicationManifest.Builder builder = ApplicationManifest.builder();
+    for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+      Object value = attribute.getValue();
+      if (value == null) {
+        continue;
+      }
+      switch (attribute.getKey()) {
+        case "name":
+          builder.name(value.toString());
+          break;
+        case "buildpack":
+          builder.buildpack(value.toString());
+          break;
+        case "command":
+          builder.command(value.toString());
+          break;
+        case "disk_quota":
+          builder.disk(ManifestUtils.asMemoryInteger(value.toString()));
+          break;
+        case "memory":
+          builder.memory(ManifestUtils.asMemoryInteger(value.toString()));
+          break;
+        case "instances":
+          builder.instances(Integer.valueOf(value.toString()));
+          break;
+        case "timeout":
+          builder.timeout(Integer.valueOf(value.toString()));
+          break;
+        case "stack":
+          builder.stack(value.toString());
+          break;
+        case "path":
+          builder.path(directory.resolve(value.toString()).normalize());
+          break;
+        case "docker":
+          Map<String, Object> docker = asMap(value, "docker attribute");
+          Docker.Builder dockerBuilder = Docker.builder();
+          if (docker.get("image") != null) {
+            dockerBuilder.image(docker.get("image").toString());
+          }
+          if (docker.get("username") != null) {
+            dockerBuilder.username(docker.get("username").toString());
+          }
+          builder.docker(dockerBuilder.build());
+          break;
+        case "domain":
+          builder.domain(value.toString());
+          break;
+        case "domains":
+          builder.domains(asStrings(value));
+          break;
+        case "host":
+          builder.host(value.toString());
+          break;
+        case "hosts":
+          builder.hosts(asStrings(value));
+          break;
+        case "route-path":
+          builder.routePath(value.toString());
+          break;
+        case "routes":
+          if (!(value instanceof List)) {
+            throw new IllegalArgumentException("The routes attribute is not a list: " + value);
+          }
+          List<Route> routes = new ArrayList<>();
+          for (Object route : (List<?>) value) {
+            Object url = asMap(route, "routes item").get("route");
+            if (url == null) {
+              throw new IllegalArgumentException("The routes item has no route: " + route);
+            }
+            routes.add(Route.builder().route(url.toString()).build());
+          }
+          builder.routes(routes);
+          break;
+        case "no-hostname":
+          builder.noHostname(Boolean.valueOf(value.toString()));
+          break;
+        case "no-route":
+          builder.noRoute(Boolean.valueOf(value.toString()));
+          break;
+        case "random-route":
+          builder.randomRoute(Boolean.valueOf(value.toString()));
+          break;
+        case "health-check-type":
+          builder.healthCheckType(ApplicationHealthCheck.from(value.toString()));
+          break;
+        case "health-check-http-endpoint":
+          builder.healthCheckHttpEndpoint(value.toString());
+          break;
+        case "env":
+          builder.environmentVariables(asMap(value, "env attribute"));
+          break;
+        case "services":
+          builder.services(asStrings(value));
+          break;
+        default:
+          // not read by the client either; reported by ignoredAttributes
+          break;
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * The attributes of an application that {@link #toManifest} does not read,
+   * such as those of a newer manifest format, so they can be reported rather
+   * than dropped silently.
+   *
+   * @param attributes the attributes of the application, as read by
+   * {@link #applications}
+   * @return the names of the attributes that are ignored, in their order
+   */
+  static List<String> ignoredAttributes(Map<String, Object> attributes) {
+    List<String> ignored = new ArrayList<>();
+    for (String attribute : attributes.keySet()) {
+      if (!ATTRIBUTES.contains(attribute)) {
+        ignored.add(attribute);
+      }
+    }
+    return ignored;
+  }
+
+  private static List<String> asStrings(Object value) {
+    if (!(value instanceof List)) {
+      return Collections.singletonList(value.toString());
+    }
+    List<String> strings = new ArrayList<>();
+    for (Object item : (List<?>) value) {
+      strings.add(String.valueOf(item));
+    }
+    return strings;
+  }
+}
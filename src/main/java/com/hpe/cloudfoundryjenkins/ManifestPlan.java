@@ -0,0 +1,234 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ManifestChoice;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ServiceName;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang.StringUtils;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+
+/**
+ * The application configuration entered in Jenkins, compiled once when the job
+ * is configured instead of on every build. Settings without macros are parsed
+ * and checked when compiling, so a bad constant fails the configuration rather
+ * than a build; only the settings that contain macros are expanded and parsed
+ * by {@link #resolve}.
+ */
+public final class ManifestPlan {
+
+  private static final String NAME = "name";
+  private static final String BUILDPACK = "buildpack";
+  private static final String COMMAND = "command";
+  private static final String DOMAIN = "domain";
+  private static final String HOST = "host";
+  private static final String INSTANCES = "instances";
+  private static final String MEMORY = "memory";
+  private static final String NO_ROUTE = "no-route";
+  private static final String STACK = "stack";
+  private static final String TIMEOUT = "timeout";
+
+  /**
+   * Settings without macros, already parsed, in the order they are applied.
+   */
+  private final Map<String, Object> constants;
+
+  /**
+   * Settings with macros, as entered.
+   */
+  private final Map<String, String> templates;
+
+  private final String appPath;
+  private final List<EnvironmentVariable> envVars;
+  private final List<String> servicesNames;
+  private final boolean hasMacros;
+
+  private ManifestPlan(Map<String, Object> constants, Map<String, String> templates, String appPath,
+          List<EnvironmentVariable> envVars, List<String> servicesNames, boolean hasMacros) {
+    this.constants = Collections.unmodifiableMap(constants);
+    this.templates = Collections.unmodifiableMap(templates);
+    this.appPath = appPath;
+    this.envVars = Collections.unmodifiableList(envVars);
+    this.servicesNames = Collections.unmodifiableList(servicesNames);
+    this.hasMacros = hasMacros;
+  }
+
+  /**
+   * Compiles the application configuration of a manifest choice.
+   *
+   * @param manifestChoice the manifest choice
+   * @return the plan
+   * @throws IllegalArgumentException if a setting without macros is invalid
+   */
+  static ManifestPlan compile(ManifestChoice manifestChoice) {
+    Map<String, String> settings = new LinkedHashMap<>();
+    settings.put(NAME, manifestChoice.appName);
+    settings.put(BUILDPACK, manifestChoice.buildpack);
+    settings.put(COMMAND, manifestChoice.command);
+    settings.put(DOMAIN, manifestChoice.domain);
+    settings.put(HOST, manifestChoice.hostname);
+    settings.put(INSTANCES, manifestChoice.instances);
+    settings.put(MEMORY, manifestChoice.memory);
+    settings.put(NO_ROUTE, manifestChoice.noRoute);
+    settings.put(STACK, manifestChoice.stack);
+    settings.put(TIMEOUT, manifestChoice.timeout);
+    Map<String, Object> constants = new LinkedHashMap<>();
+    Map<String, String> templates = new LinkedHashMap<>();
+    for (Map.Entry<String, String> setting : settings.entrySet()) {
+      String text = setting.getValue();
+      if (StringUtils.isBlank(text)) {
+        continue;
+      }
+      if (hasMacro(text)) {
+        templates.put(setting.getKey(), text);
+      } else {
+        constants.put(setting.getKey(), parse(setting.getKey(), text));
+      }
+    }
+    boolean hasMacros = !templates.isEmpty() || hasMacro(manifestChoice.appPath);
+    List<EnvironmentVariable> envVars = new ArrayList<>();
+    if (manifestChoice.envVars != null) {
+      for (EnvironmentVariable envVar : manifestChoice.envVars) {
+        envVars.add(envVar);
+        hasMacros |= hasMacro(envVar.key) || hasMacro(envVar.value);
+      }
+    }
+    List<String> servicesNames = new ArrayList<>();
+    if (manifestChoice.servicesNames != null) {
+      for (ServiceName serviceName : manifestChoice.servicesNames) {
+        servicesNames.add(serviceName.name);
+        hasMacros |= hasMacro(serviceName.name);
+      }
+    }
+    return new ManifestPlan(constants, templates, manifestChoice.appPath, envVars, servicesNames, hasMacros);
+  }
+
+  /**
+   * Builds the manifest of a build, expanding only the settings that contain
+   * macros.
+   *
+   * @param filesPath the application files
+   * @param isOnSlave whether the application files were copied from an agent,
+   * in which case they are already the application path
+   * @param run the build
+   * @param workspace the workspace
+   * @param taskListener the build listener
+   * @return the manifest
+   * @throws IOException if a macro cannot be expanded
+   * @throws InterruptedException if interrupted while expanding a macro
+   * @throws MacroEvaluationException if a macro cannot be expanded
+   * @throws IllegalArgumentException if an expanded setting is invalid
+   */
+  ApplicationManifest resolve(FilePath filesPath, boolean isOnSlave, Run<?, ?> run, FilePath workspace, TaskListener taskListener)
+          throws IOException, InterruptedException, MacroEvaluationException {
+    TokenExpander expander = hasMacros ? new TokenExpander(run, workspace, taskListener) : null;
+    ApplicationManifest.Builder manifestBuilder = ApplicationManifest.builder();
+    for (Map.Entry<String, Object> constant : constants.entrySet()) {
+      apply(manifestBuilder, constant.getKey(), constant.getValue());
+    }
+    for (Map.Entry<String, String> template : templates.entrySet()) {
+      apply(manifestBuilder, template.getKey(), parse(template.getKey(), expander.expand(template.getValue())));
+    }
+    Path root = Paths.get(filesPath.toURI());
+    manifestBuilder.path(isOnSlave || StringUtils.isBlank(appPath)
+            ? root
+            : Paths.get(root.toString(), expand(expander, appPath)));
+    if (!envVars.isEmpty()) {
+      Map<String, Object> expandedEnvVars = new HashMap<>(envVars.size());
+      for (EnvironmentVariable envVar : envVars) {
+        expandedEnvVars.put(expand(expander, envVar.key), expand(expander, envVar.value));
+      }
+      manifestBuilder.environmentVariables(expandedEnvVars);
+    }
+    if (!servicesNames.isEmpty()) {
+      List<String> expandedServicesNames = new ArrayList<>(servicesNames.size());
+      for (String serviceName : servicesNames) {
+        expandedServicesNames.add(expand(expander, serviceName));
+      }
+      manifestBuilder.services(expandedServicesNames);
+    }
+    return manifestBuilder.build();
+  }
+
+  /**
+   * @param text a setting, possibly {@code null}
+   * @return whether the setting contains macros, and so can only be checked
+   * once it is expanded
+   */
+  static boolean hasMacro(String text) {
+    return text != null && TokenExpander.MACRO.matcher(text).find();
+  }
+
+  private static String expand(TokenExpander expander, String text) throws IOException, InterruptedException, MacroEvaluationException {
+    return expander == null ? text : expander.expand(text);
+  }
+
+  private static Object parse(String setting, String text) {
+    try {
+      switch (setting) {
+        case INSTANCES:
+        case TIMEOUT:
+          return Integer.valueOf(text);
+        case MEMORY:
+          return ManifestUtils.asMemoryInteger(text);
+        case NO_ROUTE:
+          return Boolean.parseBoolean(text);
+        default:
+          return text;
+      }
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid " + setting + ": " + text, e);
+    }
+  }
+
+  private static void apply(ApplicationManifest.Builder manifestBuilder, String setting, Object value) {
+    switch (setting) {
+      case NAME:
+        manifestBuilder.name((String) value);
+        break;
+      case BUILDPACK:
+        manifestBuilder.buildpack((String) value);
+        break;
+      case COMMAND:
+        manifestBuilder.command((String) value);
+        break;
+      case DOMAIN:
+        manifestBuilder.domain((String) value);
+        break;
+      case HOST:
+        manifestBuilder.host((String) value);
+        break;
+      case INSTANCES:
+        manifestBuilder.instances((Integer) value);
+        break;
+      case MEMORY:
+        manifestBuilder.memory((Integer) value);
+        break;
+      case NO_ROUTE:
+        manifestBuilder.noRoute((Boolean) value);
+        break;
+      case STACK:
+        manifestBuilder.stack((String) value);
+        break;
+      case TIMEOUT:
+        manifestBuilder.timeout((Integer) value);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown setting " + setting);
+    }
+  }
+}
@@ -3,27 +3,43 @@
  */
 package com.hpe.cloudfoundryjenkins;
 
-import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
-import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ServiceName;
+import hudson.AbortException;
 import hudson.FilePath;
+import hudson.model.Computer;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.io.IOUtils;
+import java.util.stream.Stream;
+import jenkins.MasterToSlaveFileCallable;
 import org.apache.commons.lang.StringUtils;
 import org.cloudfoundry.operations.applications.ApplicationManifest;
-import org.cloudfoundry.operations.applications.ApplicationManifestUtils;
+import org.cloudfoundry.operations.applications.Route;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
-import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+import org.yaml.snakeyaml.error.YAMLException;
 
 /**
  * Utility methods for dealing with manifests.
@@ -32,10 +48,26 @@ import org.jenkinsci.plugins.tokenmacro.TokenMacro;
  */
 public class ManifestUtils {
 
+  /**
+   * Loads the manifests of a build where the application files are.
+   *
+   * @param filesPath the application files, which manifest files are looked
+   * up in
+   * @param manifestChoice the manifest configuration
+   * @param isOnSlave whether the application files were copied from an agent
+   * @param run the build
+   * @param workspace the workspace
+   * @param taskListener the build listener
+   * @return the manifests
+   * @throws AbortException if a manifest is invalid
+   * @throws IOException if a manifest cannot be read
+   * @throws InterruptedException if interrupted while reading a manifest
+   * @throws MacroEvaluationException if a macro cannot be expanded
+   */
   public static List<ApplicationManifest> loadManifests(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, boolean isOnSlave, Run run, FilePath workspace, TaskListener taskListener) throws IOException, InterruptedException, MacroEvaluationException {
     switch (manifestChoice.value) {
       case "manifestFile":
-        return loadManifestFiles(filesPath, manifestChoice, run, workspace, taskListener);
+        return validate(filesPath, manifestChoice, false, run, workspace, taskListener).resolve(filesPath, isOnSlave, run, workspace, taskListener);
       case "jenkinsConfig":
         return jenkinsConfig(filesPath, manifestChoice, isOnSlave, run, workspace, taskListener);
       default:
@@ -43,108 +75,417 @@ public class ManifestUtils {
     }
   }
 
-  private static List<ApplicationManifest> loadManifestFiles(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, Run run, FilePath workspace, TaskListener taskListener) throws IOException, InterruptedException, MacroEvaluationException {
-    String tokenExpandedManifestPath = TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.getManifestFile());
-    FilePath manifestPath;
+  /**
+   * Loads and checks the manifests where the workspace is, before any
+   * application bits are copied from an agent. Macros are expanded here, but a
+   * manifest file is parsed on the agent, next to the manifests it inherits
+   * and the paths it names, and only the attributes of its applications come
+   * back, to be built into manifests wherever the application files end up.
+   *
+   * @param workspace the workspace
+   * @param manifestChoice the manifest configuration
+   * @param checkPaths whether the paths the manifests name must exist; a
+   * promotion uploads no application files, so it does not check them
+   * @param run the build
+   * @param taskListener the build listener
+   * @return the checked manifests
+   * @throws AbortException if a manifest is invalid
+   * @throws IOException if a manifest cannot be read
+   * @throws InterruptedException if interrupted while reading a manifest
+   * @throws MacroEvaluationException if a macro cannot be expanded
+   */
+  public static ValidatedManifests validateManifests(FilePath workspace, CloudFoundryPushPublisher.ManifestChoice manifestChoice, boolean checkPaths, Run run, TaskListener taskListener) throws IOException, InterruptedException, MacroEvaluationException {
+    return validate(workspace, manifestChoice, checkPaths, run, workspace, taskListener);
+  }
+
+  private static ValidatedManifests validate(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, boolean checkPaths, Run run, FilePath workspace, TaskListener taskListener) throws IOException, InterruptedException, MacroEvaluationException {
+    switch (manifestChoice.value) {
+      case "manifestFile":
+        String tokenExpandedManifestPath = new TokenExpander(run, workspace, taskListener).expand(manifestChoice.getManifestFile());
+        Map<String, Object> vars = ManifestVariables.load(manifestChoice.getVarsFiles(), run, workspace, taskListener);
+        List<FilePath> manifestPaths = manifestPaths(filesPath, tokenExpandedManifestPath);
+        if (manifestPaths.size() == 1) {
+          return new ValidatedManifests(manifestChoice,
+                  Collections.singletonList(readManifest(filesPath, manifestPaths.get(0), vars, checkPaths, run, workspace, taskListener)),
+                  isPattern(tokenExpandedManifestPath));
+        }
+        // read, expanded and parsed in parallel, on the pool Jenkins shares for remoting, but kept in path order
+        List<Callable<ParsedManifest>> reads = new ArrayList<>(manifestPaths.size());
+        for (FilePath manifestPath : manifestPaths) {
+          reads.add(() -> readManifest(filesPath, manifestPath, vars, checkPaths, run, workspace, taskListener));
+        }
+        List<ParsedManifest> parsed = new ArrayList<>(manifestPaths.size());
+        for (Future<ParsedManifest> read : Computer.threadPoolForRemoting.invokeAll(reads)) {
+          try {
+            parsed.add(read.get());
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+              throw (IOException) cause;
+            } else if (cause instanceof MacroEvaluationException) {
+              throw (MacroEvaluationException) cause;
+            } else if (cause instanceof InterruptedException) {
+              throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+              throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+          }
+        }
+        return new ValidatedManifests(manifestChoice, parsed, true);
+      case "jenkinsConfig":
+        try {
+          return new ValidatedManifests(manifestChoice,
+                  Collections.singletonList(jenkinsConfig(filesPath, manifestChoice, false, run, workspace, taskListener).get(0).getName()));
+        } catch (IllegalArgumentException | IllegalStateException e) {
+          throw new AbortException("Invalid application configuration: " + e.getMessage());
+        }
+      default:
+        throw new IllegalArgumentException("manifest choice must be either 'manifestFile' or 'jenkinsConfig', but was " + manifestChoice.value);
+    }
+  }
+
+  /**
+   * The manifests of a build, checked where the workspace is.
+   */
+  public static final class ValidatedManifests {
+
+    private final CloudFoundryPushPublisher.ManifestChoice manifestChoice;
+
+    /**
+     * The manifest files, or {@code null} for the application configuration
+     * entered in Jenkins.
+     */
+    private final List<ParsedManifest> parsed;
+    private final boolean pattern;
+    private final List<String> names;
+
+    ValidatedManifests(CloudFoundryPushPublisher.ManifestChoice manifestChoice, List<ParsedManifest> parsed, boolean pattern) {
+      this.manifestChoice = manifestChoice;
+      this.parsed = parsed;
+      this.pattern = pattern;
+      List<String> names = new ArrayList<>();
+      for (ParsedManifest manifest : parsed) {
+        for (Map<String, Object> application : manifest.applications) {
+          names.add(String.valueOf(application.get("name")));
+        }
+      }
+      this.names = Collections.unmodifiableList(names);
+    }
+
+    ValidatedManifests(CloudFoundryPushPublisher.ManifestChoice manifestChoice, List<String> names) {
+      this.manifestChoice = manifestChoice;
+      this.parsed = null;
+      this.pattern = false;
+      this.names = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @return the names of the applications, in the order they are pushed
+     */
+    public List<String> getNames() {
+      return names;
+    }
+
+    /**
+     * Builds the manifests against the application files. Manifest files are
+     * not read again: their relative paths are resolved against the same
+     * place in the application files, which may be a copy of the workspace.
+     *
+     * @param filesPath the application files
+     * @param isOnSlave whether the application files were copied from an agent
+     * @param run the build
+     * @param workspace the workspace
+     * @param taskListener the build listener
+     * @return the manifests
+     * @throws IOException if the application files cannot be located
+     * @throws InterruptedException if interrupted while locating them
+     * @throws MacroEvaluationException if a macro of the application
+     * configuration cannot be expanded
+     */
+    public List<ApplicationManifest> resolve(FilePath filesPath, boolean isOnSlave, Run run, FilePath workspace, TaskListener taskListener) throws IOException, InterruptedException, MacroEvaluationException {
+      if (parsed == null) {
+        return jenkinsConfig(filesPath, manifestChoice, isOnSlave, run, workspace, taskListener);
+      }
+      Path root = Paths.get(filesPath.toURI()).toAbsolutePath().normalize();
+      List<ApplicationManifest> manifests = new ArrayList<>();
+      for (ParsedManifest manifest : parsed) {
+        Path directory = root.resolve(manifest.name).normalize().getParent();
+        // the applications of a single manifest default to the application files, those of a pattern to their directory
+        Path defaultPath = pattern ? directory : root;
+        for (Map<String, Object> attributes : manifest.applications) {
+          manifests.add(fixManifest(defaultPath, ManifestParser.toManifest(attributes, directory)));
+        }
+      }
+      return manifests;
+    }
+  }
+
+  /**
+   * Whether a manifest file setting is a pattern, rather than the path of one
+   * manifest.
+   *
+   * @param manifestFile the manifest file setting, after macro expansion
+   * @return whether it is a pattern
+   */
+  static boolean isPattern(String manifestFile) {
+    return manifestFile.indexOf('*') >= 0 || manifestFile.indexOf('?') >= 0;
+  }
+
+  /**
+   * The manifests named by a manifest file setting. A pattern, such as
+   * {@code services/*}{@code /manifest.yml}, is matched relative to the files
+   * path, and its matches are sorted by path.
+   */
+  private static List<FilePath> manifestPaths(FilePath filesPath, String tokenExpandedManifestPath) throws IOException, InterruptedException {
+    if (!isPattern(tokenExpandedManifestPath)) {
+      return Collections.singletonList(manifestPath(filesPath, tokenExpandedManifestPath));
+    }
+    List<FilePath> matches = new ArrayList<>(Arrays.asList(filesPath.list(tokenExpandedManifestPath)));
+    if (matches.isEmpty()) {
+      throw new AbortException("No manifest matches " + tokenExpandedManifestPath + " in " + filesPath.getRemote() + ".");
+    }
+    matches.sort(Comparator.comparing(FilePath::getRemote));
+    return matches;
+  }
+
+  private static FilePath manifestPath(FilePath filesPath, String tokenExpandedManifestPath) {
     File f = new File(tokenExpandedManifestPath);
     if (f.isAbsolute()) {
-      manifestPath = new FilePath(f);
-    } else {
-      manifestPath = new FilePath(filesPath, tokenExpandedManifestPath);
+      return new FilePath(filesPath.getChannel(), tokenExpandedManifestPath);
+    }
+    return new FilePath(filesPath, tokenExpandedManifestPath);
+  }
+
+  /**
+   * The name of a manifest for {@link ManifestCache}: its path relative to the
+   * application files, or its absolute path if it lies elsewhere.
+   */
+  private static String manifestName(FilePath filesPath, FilePath manifestPath) throws IOException, InterruptedException {
+    Path root = Paths.get(filesPath.toURI()).toAbsolutePath().normalize();
+    Path manifest = Paths.get(manifestPath.toURI()).toAbsolutePath().normalize();
+    return manifest.startsWith(root) ? root.relativize(manifest).toString() : manifest.toString();
+  }
+
+  /**
+   * Reads and expands a manifest file, and parses and checks it where it is.
+   */
+  private static ParsedManifest readManifest(FilePath filesPath, FilePath manifestPath, Map<String, Object> vars, boolean checkPaths, Run run, FilePath workspace, TaskListener taskListener) throws IOException, InterruptedException, MacroEvaluationException {
+    if (!manifestPath.exists()) {
+      throw new AbortException("Manifest " + manifestPath.getRemote() + " does not exist.");
     }
-    List<String> manifestContents = IOUtils.readLines(manifestPath.read());
-    StringBuilder sb = new StringBuilder();
-    for (String line : manifestContents) {
-      String tokenExpandedLine = TokenMacro.expandAll(run, workspace, taskListener, line);
-      sb.append(tokenExpandedLine).append(System.lineSeparator());
+    TokenExpander expander = new TokenExpander(run, workspace, taskListener);
+    String rawManifest = manifestPath.readToString();
+    String tokenExpandedManifest = expander.expand(rawManifest);
+    ParsedManifest parsed = manifestPath.act(new ManifestCheck(manifestName(filesPath, manifestPath), rawManifest,
+            expander.getExpansions(), tokenExpandedManifest, vars, checkPaths));
+    for (String warning : parsed.warnings) {
+      taskListener.getLogger().println("WARNING: " + warning);
     }
-    FilePath actualSourceManifestFilePath = filesPath;
-    if (manifestChoice.getManifestFile().contains(File.separator)) {
-      int pos = manifestChoice.getManifestFile().lastIndexOf(File.separator);
-      actualSourceManifestFilePath = new FilePath(actualSourceManifestFilePath, manifestChoice.getManifestFile().substring(0, pos));
+    return parsed;
+  }
+
+  /**
+   * The applications of a manifest file, as read where the file is.
+   */
+  static final class ParsedManifest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The name of the manifest relative to the application files.
+     */
+    final String name;
+
+    /**
+     * The attributes of each application, as plain maps, lists and scalars.
+     */
+    final List<Map<String, Object>> applications;
+
+    /**
+     * What the build log should be warned about, such as ignored attributes.
+     */
+    final List<String> warnings;
+
+    ParsedManifest(String name, List<Map<String, Object>> applications, List<String> warnings) {
+      this.name = name;
+      this.applications = new ArrayList<>(applications);
+      this.warnings = new ArrayList<>(warnings);
     }
-    FilePath tokenExpandedManifestFile = actualSourceManifestFilePath.createTextTempFile("cf-jenkins-plugin-generated-manifest", ".yml", sb.toString(), true);
-    try {
-      return ApplicationManifestUtils.read(Paths.get(tokenExpandedManifestFile.toURI()))
-              .stream()
-              .map(manifest -> fixManifest(filesPath, manifest))
-              .collect(Collectors.toList());
-    } finally {
-      tokenExpandedManifestFile.delete();
+  }
+
+  /**
+   * Parses an expanded manifest where the manifest file is, and checks that
+   * every application is valid and, unless told otherwise, that the paths it
+   * names exist.
+   */
+  private static final class ManifestCheck extends MasterToSlaveFileCallable<ParsedManifest> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String manifestName;
+    private final String rawManifest;
+    private final Map<String, String> expansions;
+    private final String expandedManifest;
+    private final Map<String, Object> vars;
+    private final boolean checkPaths;
+
+    ManifestCheck(String manifestName, String rawManifest, Map<String, String> expansions, String expandedManifest,
+            Map<String, Object> vars, boolean checkPaths) {
+      this.manifestName = manifestName;
+      this.rawManifest = rawManifest;
+      this.expansions = new LinkedHashMap<>(expansions);
+      this.expandedManifest = expandedManifest;
+      this.vars = new LinkedHashMap<>(vars);
+      this.checkPaths = checkPaths;
+    }
+
+    @Override
+    public ParsedManifest invoke(File manifest, VirtualChannel channel) throws IOException, InterruptedException {
+      Path directory = manifest.toPath().toAbsolutePath().normalize().getParent();
+      List<Map<String, Object>> applications;
+      List<String> warnings = new ArrayList<>();
+      try {
+        applications = ManifestCache.applications(manifest.toPath(), manifestName, rawManifest, expansions, expandedManifest, vars);
+        for (Map<String, Object> attributes : applications) {
+          ApplicationManifest application = ManifestParser.toManifest(attributes, directory);
+          if (checkPaths && application.getPath() != null && !Files.exists(application.getPath())) {
+            throw new AbortException("Invalid manifest " + manifest + ": the path " + application.getPath()
+                    + " of application " + application.getName() + " does not exist.");
+          }
+          List<String> ignored = ManifestParser.ignoredAttributes(attributes);
+          if (!ignored.isEmpty()) {
+            warnings.add("Manifest " + manifestName + ": application " + application.getName()
+                    + " has attributes that are not supported and are ignored: " + String.join(", ", ignored));
+          }
+        }
+      } catch (IllegalArgumentException | IllegalStateException | YAMLException e) {
+        throw new AbortException("Invalid manifest " + manifest + ": " + e.getMessage());
+      }
+      return new ParsedManifest(manifestName, applications, warnings);
     }
   }
 
   /**
    * Workarounds for any manifest issues should be added here.
    *
-   * @param build the build
+   * @param filesPath the path of applications that do not name one
    * @param manifest the manifest
    * @return either the original manifest or a fixed-up version of the manifest
    */
-  private static ApplicationManifest fixManifest(final FilePath filesPath, final ApplicationManifest manifest) {
+  private static ApplicationManifest fixManifest(final Path filesPath, final ApplicationManifest manifest) {
     if (manifest.getPath() == null && (manifest.getDocker() == null || StringUtils.isEmpty(manifest.getDocker().getImage()))) {
-      try {
-        return ApplicationManifest.builder().from(manifest).path(Paths.get(filesPath.toURI())).build();
-      } catch (IOException | InterruptedException e) {
-        throw new RuntimeException(e);
-      }
+      return ApplicationManifest.builder().from(manifest).path(filesPath).build();
     } else {
       return manifest;
     }
   }
 
   private static List<ApplicationManifest> jenkinsConfig(FilePath filesPath, CloudFoundryPushPublisher.ManifestChoice manifestChoice, boolean isOnSlave, final Run run, final FilePath workspace, final TaskListener taskListener) throws IOException, InterruptedException, MacroEvaluationException {
-    ApplicationManifest.Builder manifestBuilder = ApplicationManifest.builder();
-    manifestBuilder = !StringUtils.isBlank(manifestChoice.appName) ? manifestBuilder.name(TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.appName)) : manifestBuilder;
-    if (isOnSlave) {
-      manifestBuilder = !StringUtils.isBlank(manifestChoice.appPath)
-              ? manifestBuilder.path(Paths.get(Paths.get(filesPath.toURI()).toString()))
-              : manifestBuilder.path(Paths.get(filesPath.toURI()));
-    } else {
-      manifestBuilder = !StringUtils.isBlank(manifestChoice.appPath)
-              ? manifestBuilder.path(Paths.get(Paths.get(filesPath.toURI()).toString(), TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.appPath)))
-              : manifestBuilder.path(Paths.get(filesPath.toURI()));
-    }
-    manifestBuilder = !StringUtils.isBlank(manifestChoice.buildpack) ? manifestBuilder.buildpack(TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.buildpack)) : manifestBuilder;
-    manifestBuilder = !StringUtils.isBlank(manifestChoice.command) ? manifestBuilder.command(TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.command)) : manifestBuilder;
-    manifestBuilder = !StringUtils.isBlank(manifestChoice.domain) ? manifestBuilder.domain(TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.domain)) : manifestBuilder;
-    if (!CollectionUtils.isEmpty(manifestChoice.envVars)) {
-      Map<String, Object> tokenMacroExpandedEnvVars = new HashMap<>(manifestChoice.envVars.size());
-      for (EnvironmentVariable envVar : manifestChoice.getEnvVars()) {
-        String key = TokenMacro.expandAll(run, workspace, taskListener, envVar.key);
-        String value = TokenMacro.expandAll(run, workspace, taskListener, envVar.value);
-        tokenMacroExpandedEnvVars.put(key, value);
+    return Collections.singletonList(manifestChoice.getPlan().resolve(filesPath, isOnSlave, run, workspace, taskListener));
+  }
+
+  /**
+   * Computes a digest of everything in a manifest except its path, its scale
+   * settings (instances, memory and disk) and its staging settings (buildpack
+   * and stack). Two manifests with the same configuration digest differ at
+   * most in how the application is scaled and staged. Only the fields listed
+   * here are included, by name and in name order, and lists whose order does
+   * not matter are sorted, so the digest does not depend on how the manifest
+   * was written or on how the client library prints it.
+   *
+   * @param manifest the manifest
+   * @return the hex-encoded digest
+   */
+  public static String configurationDigest(final ApplicationManifest manifest) {
+    Map<String, Object> fields = new TreeMap<>();
+    fields.put("command", manifest.getCommand());
+    if (manifest.getDocker() != null) {
+      fields.put("docker.image", manifest.getDocker().getImage());
+      fields.put("docker.username", manifest.getDocker().getUsername());
+    }
+    fields.put("domains", sorted(manifest.getDomains()));
+    if (manifest.getEnvironmentVariables() != null) {
+      fields.put("env", new TreeMap<>(manifest.getEnvironmentVariables()));
+    }
+    fields.put("health-check-http-endpoint", manifest.getHealthCheckHttpEndpoint());
+    fields.put("health-check-type", manifest.getHealthCheckType());
+    fields.put("hosts", sorted(manifest.getHosts()));
+    fields.put("name", manifest.getName());
+    fields.put("no-hostname", manifest.getNoHostname());
+    fields.put("no-route", manifest.getNoRoute());
+    fields.put("random-route", manifest.getRandomRoute());
+    fields.put("route-path", manifest.getRoutePath());
+    if (manifest.getRoutes() != null) {
+      fields.put("routes", sorted(manifest.getRoutes().stream().map(Route::getRoute).collect(Collectors.toList())));
+    }
+    fields.put("services", sorted(manifest.getServices()));
+    fields.put("timeout", manifest.getTimeout());
+    MessageDigest digest = newDigest();
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      if (field.getValue() == null) {
+        continue;
+      }
+      digest.update((field.getKey() + "=" + field.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    return Util.toHexString(digest.digest());
+  }
+
+  /**
+   * @return the items in their natural order, or {@code null} if there are none
+   */
+  private static List<String> sorted(Collection<String> items) {
+    if (items == null || items.isEmpty()) {
+      return null;
+    }
+    List<String> sorted = new ArrayList<>(items);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  /**
+   * Computes a digest of the application bits referenced by a manifest. For
+   * a directory, every file's relative path and content is included, in a
+   * stable order. For docker applications, the image name is used instead.
+   *
+   * @param manifest the manifest
+   * @return the hex-encoded digest, or {@code null} if the manifest has no bits
+   * @throws IOException if the application bits cannot be read
+   */
+  public static String bitsDigest(final ApplicationManifest manifest) throws IOException {
+    if (manifest.getPath() == null) {
+      if (manifest.getDocker() != null && !StringUtils.isEmpty(manifest.getDocker().getImage())) {
+        return "docker:" + manifest.getDocker().getImage();
       }
-      manifestBuilder = manifestBuilder.environmentVariables(tokenMacroExpandedEnvVars);
-    }
-    manifestBuilder = !StringUtils.isBlank(manifestChoice.hostname) ? manifestBuilder.host(TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.hostname)) : manifestBuilder;
-    if (!StringUtils.isBlank(manifestChoice.instances)) {
-      String instances = TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.instances);
-      manifestBuilder = manifestBuilder.instances(Integer.valueOf(instances));
-    }
-    if (!StringUtils.isBlank(manifestChoice.memory)) {
-      String memory = TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.memory);
-      Integer memoryMb = asMemoryInteger(memory);
-      manifestBuilder = manifestBuilder.memory(memoryMb);
-    }
-    if (!StringUtils.isBlank(manifestChoice.noRoute)) {
-      String s = TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.noRoute);
-      Boolean noRoute = Boolean.parseBoolean(s);
-      manifestBuilder = manifestBuilder.noRoute(noRoute);
-    }
-    if (!CollectionUtils.isEmpty(manifestChoice.servicesNames)) {
-      List<String> servicesNames = new ArrayList<String>(manifestChoice.servicesNames.size());
-      for (ServiceName serviceName : manifestChoice.servicesNames) {
-        servicesNames.add(TokenMacro.expandAll(run, workspace, taskListener, serviceName.name));
+      return null;
+    }
+    Path root = manifest.getPath();
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[8192];
+    List<Path> files;
+    try (Stream<Path> stream = Files.walk(root)) {
+      files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+    }
+    for (Path file : files) {
+      String relativePath = root.relativize(file).toString().replace(File.separatorChar, '/');
+      digest.update(relativePath.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      try (InputStream in = Files.newInputStream(file)) {
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+          digest.update(buffer, 0, read);
+        }
       }
-      manifestBuilder = manifestBuilder.services(servicesNames);
     }
-    manifestBuilder = !StringUtils.isBlank(manifestChoice.stack) ? manifestBuilder.stack(TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.stack)) : manifestBuilder;
-    if (!StringUtils.isBlank(manifestChoice.timeout)) {
-      String timeout = TokenMacro.expandAll(run, workspace, taskListener, manifestChoice.timeout);
-      manifestBuilder = manifestBuilder.timeout(Integer.valueOf(timeout));
+    return Util.toHexString(digest.digest());
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
     }
-    return Collections.singletonList(manifestBuilder.build());
   }
 
   private static final int GIBI = 1024;
@@ -0,0 +1,181 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.yaml.snakeyaml.Yaml;
+import org.yaml.snakeyaml.constructor.SafeConstructor;
+import org.yaml.snakeyaml.error.YAMLException;
+
+/**
+ * Resolves {@code ((name))} placeholders in manifests from vars files, the way
+ * {@code cf push --vars-file} does. Placeholders are resolved in one pass over
+ * the parsed manifest, not over its text: a value that is just a placeholder
+ * takes the variable's value as it is, so numbers and lists keep their type,
+ * and a placeholder inside a longer value is replaced by the variable's text.
+ * A name with dots, such as {@code ((db.url))}, looks into nested maps.
+ *
+ * <p>Vars files are read each time a push loads them, so a file written
+ * between two push steps of a build is picked up by the second.</p>
+ */
+public class ManifestVariables {
+
+  /**
+   * A placeholder, with the variable name as its group.
+   */
+  static final Pattern PLACEHOLDER = Pattern.compile("\\(\\(([\\w.-]+)\\)\\)");
+
+  private ManifestVariables() {
+  }
+
+  /**
+   * Reads the variables of a build's vars files. Later files override
+   * earlier ones.
+   *
+   * @param varsFiles the vars files, one per line, relative to the workspace;
+   * may contain macros
+   * @param run the build
+   * @param workspace the workspace
+   * @param taskListener the build listener
+   * @return the variables, empty if there are no vars files
+   * @throws IOException if a vars file cannot be read or is not a map
+   * @throws InterruptedException if interrupted while reading a vars file
+   * @throws MacroEvaluationException if a macro cannot be expanded
+   */
+  static Map<String, Object> load(String varsFiles, Run<?, ?> run, FilePath workspace, TaskListener taskListener)
+          throws IOException, InterruptedException, MacroEvaluationException {
+    if (StringUtils.isBlank(varsFiles)) {
+      return Collections.emptyMap();
+    }
+    TokenExpander expander = new TokenExpander(run, workspace, taskListener);
+    Map<String, Object> vars = new LinkedHashMap<>();
+    for (String line : varsFiles.split("\\r?\\n")) {
+      if (StringUtils.isBlank(line)) {
+        continue;
+      }
+      String path = expander.expand(line.trim());
+      FilePath varsFile = new File(path).isAbsolute() ? new FilePath(workspace.getChannel(), path) : new FilePath(workspace, path);
+      vars.putAll(read(varsFile));
+    }
+    return vars;
+  }
+
+  private static Map<String, Object> read(FilePath varsFile) throws IOException, InterruptedException {
+    if (!varsFile.exists()) {
+      throw new AbortException("Vars file " + varsFile.getRemote() + " does not exist.");
+    }
+    Object loaded;
+    try {
+      loaded = new Yaml(new SafeConstructor()).load(varsFile.readToString());
+    } catch (YAMLException e) {
+      throw new AbortException("Invalid vars file " + varsFile.getRemote() + ": " + e.getMessage());
+    }
+    if (loaded != null && !(loaded instanceof Map)) {
+      throw new AbortException("Vars file " + varsFile.getRemote() + " is not a map.");
+    }
+    Map<String, Object> vars = new LinkedHashMap<>();
+    if (loaded != null) {
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) loaded).entrySet()) {
+        vars.put(String.valueOf(entry.getKey()), entry.getValue());
+      }
+    }
+    return vars;
+  }
+
+  /**
+   * Resolves every placeholder in a parsed manifest.
+   *
+   * @param node the parsed manifest, or a part of it
+   * @param vars the variables
+   * @return the manifest with its placeholders resolved; unchanged parts are
+   * not copied
+   * @throws IllegalArgumentException if a placeholder has no variable
+   */
+  static Object resolve(Object node, Map<String, Object> vars) {
+    Set<String> missing = new TreeSet<>();
+    Object resolved = resolve(node, vars, missing);
+    if (!missing.isEmpty()) {
+      throw new IllegalArgumentException("Expected to find variables: " + String.join(", ", missing));
+    }
+    return resolved;
+  }
+
+  private static Object resolve(Object node, Map<String, Object> vars, Set<String> missing) {
+    if (node instanceof String) {
+      return resolveString((String) node, vars, missing);
+    }
+    if (node instanceof Map) {
+      Map<Object, Object> resolved = new LinkedHashMap<>();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) node).entrySet()) {
+        resolved.put(entry.getKey(), resolve(entry.getValue(), vars, missing));
+      }
+      return resolved;
+    }
+    if (node instanceof List) {
+      List<Object> resolved = new ArrayList<>();
+      for (Object item : (List<?>) node) {
+        resolved.add(resolve(item, vars, missing));
+      }
+      return resolved;
+    }
+    return node;
+  }
+
+  private static Object resolveString(String text, Map<String, Object> vars, Set<String> missing) {
+    if (text.indexOf("((") < 0) {
+      return text;
+    }
+    Matcher matcher = PLACEHOLDER.matcher(text);
+    if (matcher.matches()) {
+      Object value = lookup(matcher.group(1), vars);
+      if (value == null) {
+        missing.add(matcher.group(1));
+        return text;
+      }
+      return value;
+    }
+    StringBuffer resolved = new StringBuffer(text.length());
+    matcher.reset();
+    while (matcher.find()) {
+      Object value = lookup(matcher.group(1), vars);
+      if (value == null) {
+        missing.add(matcher.group(1));
+        value = matcher.group();
+      }
+      matcher.appendReplacement(resolved, Matcher.quoteReplacement(String.valueOf(value)));
+    }
+    matcher.appendTail(resolved);
+    return resolved.toString();
+  }
+
+  private static Object lookup(String name, Map<String, Object> vars) {
+    if (vars.containsKey(name)) {
+      return vars.get(name);
+    }
+    Object value = vars;
+    for (String part : name.split("\\.")) {
+      if (!(value instanceof Map)) {
+        return null;
+      }
+      value = ((Map<?, ?>) value).get(part);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,178 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.TaskListener;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v3.Relationship;
+import org.cloudfoundry.client.v3.ToOneRelationship;
+import org.cloudfoundry.client.v3.builds.BuildState;
+import org.cloudfoundry.client.v3.builds.CreateBuildRequest;
+import org.cloudfoundry.client.v3.builds.CreateBuildResponse;
+import org.cloudfoundry.client.v3.builds.GetBuildRequest;
+import org.cloudfoundry.client.v3.builds.GetBuildResponse;
+import org.cloudfoundry.client.v3.packages.CreatePackageRequest;
+import org.cloudfoundry.client.v3.packages.CreatePackageResponse;
+import org.cloudfoundry.client.v3.packages.GetPackageRequest;
+import org.cloudfoundry.client.v3.packages.GetPackageResponse;
+import org.cloudfoundry.client.v3.packages.PackageRelationships;
+import org.cloudfoundry.client.v3.packages.PackageState;
+import org.cloudfoundry.client.v3.packages.PackageType;
+import org.cloudfoundry.client.v3.packages.UploadPackageRequest;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Pushes an application with the v3 packages, builds and droplets endpoints
+ * instead of the operations layer's push. The application is configured in a
+ * single request, then the package upload, route mapping and service binding
+ * run at the same time, as none of them depends on another. Only staging and
+ * starting wait for all of them.
+ */
+public class NativePushEngine {
+
+  /**
+   * How long to wait between checks of asynchronous v3 operations.
+   */
+  private static final long POLL_INTERVAL_MILLIS = 1000;
+
+  private final CloudFoundryClient client;
+  private final ApplicationSetup applicationSetup;
+  private final StartupWait startupWait;
+  private final Duration timeout;
+  private final TaskListener listener;
+
+  NativePushEngine(CloudFoundryClient client, ApplicationSetup applicationSetup, StartupWait startupWait, Duration timeout, TaskListener listener) {
+    this.client = client;
+    this.applicationSetup = applicationSetup;
+    this.startupWait = startupWait;
+    this.timeout = timeout;
+    this.listener = listener;
+  }
+
+  /**
+   * Whether an application can be pushed by this engine: it needs bits on disk
+   * and routes that {@link ApplicationSetup} can work out.
+   *
+   * @param manifest the manifest
+   * @return {@code true} if the engine supports the manifest
+   */
+  static boolean supports(ApplicationManifest manifest) {
+    return manifest.getPath() != null && ApplicationSetup.supports(manifest);
+  }
+
+  /**
+   * Pushes an application: configures it, uploads its bits, maps its routes
+   * and binds its services, stages the package and starts the application
+   * with the new droplet.
+   *
+   * @param manifest the manifest
+   * @param stagingLogs the staging logs of the application, which fail the
+   * wait for the build as soon as they show a staging failure, or
+   * {@code null}
+   * @param crashes the crash detector of the application
+   * @return the id of the droplet the application now runs
+   * @throws InterruptedException if interrupted while waiting for cloudfoundry
+   */
+  String push(ApplicationManifest manifest, StagingLogStream stagingLogs, CrashLoopDetector crashes) throws InterruptedException {
+    String applicationId = applicationSetup.createOrUpdate(manifest);
+    long deadline = System.nanoTime() + timeout.toNanos();
+
+    Mono<String> upload = createPackage(applicationId)
+            .then(packageId -> uploadPackage(packageId, manifest.getPath()));
+    Mono<Boolean> routes = blocking(() -> applicationSetup.mapRoutes(manifest));
+    Mono<Boolean> services = blocking(() -> applicationSetup.bindServices(manifest));
+    String packageId = Mono.when(upload, routes, services)
+            .map(results -> results.getT1())
+            .block(timeout);
+
+    waitForPackage(packageId, deadline);
+    listener.getLogger().println("Staging application " + manifest.getName());
+    String buildId = client.builds().create(CreateBuildRequest.builder()
+            .getPackage(Relationship.builder().id(packageId).build())
+            .build())
+            .map(CreateBuildResponse::getId)
+            .block(timeout);
+    String dropletId = waitForBuild(buildId, stagingLogs, deadline);
+
+    listener.getLogger().println("Starting application " + manifest.getName());
+    startupWait.runDroplet(applicationId, dropletId, manifest.getName(), crashes);
+    return dropletId;
+  }
+
+  private Mono<String> createPackage(String applicationId) {
+    return client.packages().create(CreatePackageRequest.builder()
+            .type(PackageType.BITS)
+            .relationships(PackageRelationships.builder()
+                    .application(ToOneRelationship.builder()
+                            .data(Relationship.builder().id(applicationId).build())
+                            .build())
+                    .build())
+            .build())
+            .map(CreatePackageResponse::getId);
+  }
+
+  private Mono<String> uploadPackage(String packageId, Path bits) {
+    return client.packages().upload(UploadPackageRequest.builder()
+            .packageId(packageId)
+            .bits(bits)
+            .build())
+            .map(response -> packageId);
+  }
+
+  /**
+   * Runs one of the blocking {@link ApplicationSetup} steps on its own thread,
+   * so that it can overlap with the others.
+   */
+  private static Mono<Boolean> blocking(Runnable step) {
+    // emits a value, as Mono.when completes empty if any of its sources does
+    return Mono.fromCallable(() -> {
+      step.run();
+      return Boolean.TRUE;
+    }).subscribeOn(Schedulers.elastic());
+  }
+
+  private void waitForPackage(String packageId, long deadline) throws InterruptedException {
+    while (true) {
+      PackageState state = client.packages().get(GetPackageRequest.builder().packageId(packageId).build())
+              .map(GetPackageResponse::getState)
+              .block(timeout);
+      if (state == PackageState.READY) {
+        return;
+      }
+      if (state == PackageState.FAILED || state == PackageState.EXPIRED) {
+        throw new IllegalStateException("Package " + packageId + " ended in state " + state);
+      }
+      sleepUntil(deadline, "Timed out waiting for package " + packageId);
+    }
+  }
+
+  private String waitForBuild(String buildId, StagingLogStream stagingLogs, long deadline) throws InterruptedException {
+    while (true) {
+      if (stagingLogs != null) {
+        stagingLogs.throwIfFailed();
+      }
+      GetBuildResponse build = client.builds().get(GetBuildRequest.builder().buildId(buildId).build())
+              .block(timeout);
+      if (build.getState() == BuildState.STAGED) {
+        return build.getDroplet().getId();
+      }
+      if (build.getState() == BuildState.FAILED) {
+        throw new IllegalStateException("Staging failed: " + build.getError());
+      }
+      sleepUntil(deadline, "Timed out waiting for build " + buildId);
+    }
+  }
+
+  private static void sleepUntil(long deadline, String message) throws InterruptedException {
+    if (System.nanoTime() > deadline) {
+      throw new IllegalStateException(message);
+    }
+    TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the pushes of several applications, at most a given number at a time.
+ * With a concurrency of one the pushes run one after another on the calling
+ * thread, in order. Otherwise as many workers as the concurrency take the
+ * pushes in order from a shared executor; once a push fails the pushes that
+ * have not started yet are skipped, and the first failure is thrown after the
+ * running ones have finished.
+ */
+public class PushScheduler {
+
+  /**
+   * The push of one application.
+   */
+  interface Push {
+
+    /**
+     * @throws Exception if the push fails
+     */
+    void run() throws Exception;
+  }
+
+  private final int concurrency;
+  private final ExecutorService executor;
+
+  /**
+   * @param concurrency the most pushes at the same time, zero or one to run
+   * them one after another
+   * @param executor runs the workers, such as
+   * {@link hudson.model.Computer#threadPoolForRemoting}; it is not shut down
+   */
+  PushScheduler(int concurrency, ExecutorService executor) {
+    this.concurrency = Math.max(1, concurrency);
+    this.executor = executor;
+  }
+
+  /**
+   * Runs pushes and waits for all of them. If the calling thread is
+   * interrupted, the running pushes are interrupted too.
+   *
+   * @param pushes the pushes
+   * @throws Exception the first failure of a push
+   */
+  void runAll(List<Push> pushes) throws Exception {
+    if (concurrency == 1 || pushes.size() <= 1) {
+      for (Push push : pushes) {
+        push.run();
+      }
+      return;
+    }
+    AtomicInteger next = new AtomicInteger();
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    int workers = Math.min(concurrency, pushes.size());
+    List<Future<?>> futures = new ArrayList<>(workers);
+    try {
+      for (int i = 0; i < workers; i++) {
+        futures.add(executor.submit(() -> {
+          int index;
+          // the pushes left are skipped after a failure
+          while (failure.get() == null && (index = next.getAndIncrement()) < pushes.size()) {
+            try {
+              pushes.get(index).run();
+            } catch (Exception e) {
+              failure.compareAndSet(null, e);
+            }
+          }
+        }));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          // only errors get here, everything else is recorded as the failure
+          throw (Error) e.getCause();
+        }
+      }
+    } finally {
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+    }
+    if (failure.get() != null) {
+      throw failure.get();
+    }
+  }
+}
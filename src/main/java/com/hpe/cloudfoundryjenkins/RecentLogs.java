@@ -0,0 +1,96 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.TaskListener;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.applications.LogsRequest;
+import reactor.core.publisher.Flux;
+
+/**
+ * Prints the tail of an application's recent logs. Only staging-related lines
+ * are considered, lines older than a maximum age are dropped as they arrive,
+ * and only the newest lines are kept, in a ring buffer, until the logs have
+ * been read completely.
+ */
+public class RecentLogs {
+
+  /**
+   * Default number of lines printed (500).
+   */
+  static final int DEFAULT_MAX_LINES = 500;
+
+  /**
+   * The log sources that take part in staging and starting an application:
+   * the cloud controller, the stager and the cell. Runtime output of the
+   * application and the router is left out.
+   */
+  static final Set<String> STAGING_SOURCES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("API", "STG", "CELL")));
+
+  private final int maxLines;
+  private final long maxAgeSeconds;
+
+  /**
+   * @param maxLines the maximum number of lines to print, or zero or less for
+   * {@link #DEFAULT_MAX_LINES}
+   * @param maxAgeSeconds the maximum age of a line, or zero or less for no limit
+   */
+  RecentLogs(int maxLines, long maxAgeSeconds) {
+    this.maxLines = maxLines > 0 ? maxLines : DEFAULT_MAX_LINES;
+    this.maxAgeSeconds = maxAgeSeconds > 0 ? maxAgeSeconds : 0;
+  }
+
+  /**
+   * Prints the tail of the recent logs of an application.
+   *
+   * @param cloudFoundryOperations the cloudfoundry operations
+   * @param listener where to print the logs
+   * @param appName the application
+   * @param timeout the timeout in seconds
+   */
+  void print(CloudFoundryOperations cloudFoundryOperations, TaskListener listener, String appName, long timeout) {
+    print(cloudFoundryOperations.applications().logs(LogsRequest.builder().name(appName).recent(Boolean.TRUE).build()),
+            listener, timeout);
+  }
+
+  /**
+   * Prints the tail of some logs.
+   *
+   * @param logs the logs, oldest first
+   * @param listener where to print the logs
+   * @param timeout the timeout in seconds
+   */
+  void print(Flux<LogMessage> logs, TaskListener listener, long timeout) {
+    long oldest = maxAgeSeconds == 0 ? Long.MIN_VALUE
+            : TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - TimeUnit.SECONDS.toNanos(maxAgeSeconds);
+    Deque<LogMessage> tail = new ArrayDeque<>(maxLines);
+    int[] dropped = {0};
+    logs.timeout(Duration.ofSeconds(timeout))
+            .filter(log -> STAGING_SOURCES.contains(log.getSourceType()))
+            .filter(log -> log.getTimestamp() == null || log.getTimestamp() >= oldest)
+            .doOnNext(log -> {
+              if (tail.size() == maxLines) {
+                tail.removeFirst();
+                dropped[0]++;
+              }
+              tail.addLast(log);
+            })
+            .blockLast();
+    if (dropped[0] > 0) {
+      listener.getLogger().println("(" + dropped[0] + " older log lines not shown)");
+    }
+    for (LogMessage log : tail) {
+      listener.getLogger().println(log.getMessage());
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.TaskListener;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.operations.applications.DeleteApplicationRequest;
+import org.cloudfoundry.operations.applications.GetApplicationRequest;
+import org.cloudfoundry.operations.applications.PushApplicationManifestRequest;
+import org.cloudfoundry.operations.applications.RenameApplicationRequest;
+import org.cloudfoundry.operations.applications.Route;
+import org.cloudfoundry.operations.applications.ScaleApplicationRequest;
+import org.cloudfoundry.operations.routes.MapRouteRequest;
+
+/**
+ * Replaces a running application one instance at a time. The new version is
+ * pushed with a single instance on the routes of the running application, then
+ * each step starts one more new instance and, once it is running, stops one
+ * old instance, so the number of running instances never drops. Finally the
+ * old application is deleted and the new one takes over its name.
+ */
+public class RollingDeployment {
+
+  /**
+   * Appended to the application name while the new version rolls out.
+   */
+  static final String NEW_VERSION_SUFFIX = "-rolling";
+
+  private final CloudFoundryOperations cloudFoundryOperations;
+  private final ApplicationSetup applicationSetup;
+  private final LogCapture logCapture;
+  private final StartupWait startupWait;
+  private final Duration timeout;
+  private final TaskListener listener;
+
+  RollingDeployment(CloudFoundryOperations cloudFoundryOperations, ApplicationSetup applicationSetup, LogCapture logCapture, StartupWait startupWait,
+          Duration timeout, TaskListener listener) {
+    this.cloudFoundryOperations = cloudFoundryOperations;
+    this.applicationSetup = applicationSetup;
+    this.logCapture = logCapture;
+    this.startupWait = startupWait;
+    this.timeout = timeout;
+    this.listener = listener;
+  }
+
+  /**
+   * Whether an application can be rolled out. The new version has to be
+   * pushed on the exact routes of the old one, so random and TCP routes are
+   * left to a normal push.
+   *
+   * @param manifest the manifest
+   * @return {@code true} if the application can be rolled out
+   */
+  static boolean supports(ApplicationManifest manifest) {
+    return ApplicationSetup.hasFixedHttpRoutes(manifest);
+  }
+
+  /**
+   * Rolls out a new version. If it fails, the new version is deleted and the
+   * old application is scaled back to where it was.
+   *
+   * @param manifest the manifest of the new version
+   * @param oldInstances the number of instances the old application runs
+   * @throws InterruptedException if interrupted while waiting for instances
+   */
+  void deploy(ApplicationManifest manifest, int oldInstances) throws InterruptedException {
+    String appName = manifest.getName();
+    String newName = appName + NEW_VERSION_SUFFIX;
+    int instances = manifest.getInstances() == null ? oldInstances : manifest.getInstances();
+    listener.getLogger().println("Rolling out a new version of application " + appName + " (" + oldInstances + " -> " + instances + " instances).");
+    int remaining = oldInstances;
+    CrashLoopDetector crashes = startupWait.crashDetector(newName);
+    try {
+      StagingLogStream stagingLogs = logCapture.open(cloudFoundryOperations, listener, newName, false);
+      try {
+        crashes.watch(stagingLogs.failFast(cloudFoundryOperations.applications().pushManifest(PushApplicationManifestRequest.builder()
+                .manifest(newVersion(manifest, newName))
+                .build())))
+                .block(timeout);
+      } finally {
+        stagingLogs.close();
+      }
+      stagingLogs.printRecentIfMissed(timeout.getSeconds());
+      String newId = cloudFoundryOperations.applications().get(GetApplicationRequest.builder().name(newName).build())
+              .block(timeout)
+              .getId();
+      startupWait.awaitRunning(newId, newName, 1, crashes);
+      listener.getLogger().println("Step 1/" + instances + ": new instance running.");
+      remaining = scale(appName, remaining - 1, remaining);
+      for (int step = 2; step <= instances; step++) {
+        scale(newName, step, step);
+        startupWait.awaitRunning(newId, newName, step, crashes);
+        remaining = scale(appName, remaining - 1, remaining);
+        listener.getLogger().println("Step " + step + "/" + instances + ": new instance running, "
+                + remaining + " old instance(s) left.");
+      }
+    } catch (RuntimeException | InterruptedException e) {
+      listener.getLogger().println("Rolling deployment of application " + appName + " failed, deleting the new version.");
+      try {
+        cloudFoundryOperations.applications().delete(DeleteApplicationRequest.builder().name(newName).build())
+                .block(timeout);
+        if (remaining < oldInstances) {
+          scale(appName, oldInstances, remaining);
+        }
+      } catch (RuntimeException cleanup) {
+        listener.getLogger().println("WARNING: could not restore application " + appName + ": " + cleanup.getMessage());
+      }
+      throw e;
+    }
+    cloudFoundryOperations.applications().delete(DeleteApplicationRequest.builder()
+            .name(appName)
+            .deleteRoutes(false)
+            .build())
+            .block(timeout);
+    cloudFoundryOperations.applications().rename(RenameApplicationRequest.builder()
+            .name(newName)
+            .newName(appName)
+            .build())
+            .block(timeout);
+    listener.getLogger().println("Application " + appName + " now runs the new version.");
+  }
+
+  /**
+   * Scales an application's instances without restarting it. Scaling to zero
+   * is skipped, as the application is about to be deleted anyway.
+   *
+   * @return the number of instances after the call
+   */
+  private int scale(String name, int instances, int current) {
+    if (instances < 1 || instances == current) {
+      return current;
+    }
+    cloudFoundryOperations.applications().scale(ScaleApplicationRequest.builder()
+            .name(name)
+            .instances(instances)
+            .build())
+            .block(timeout);
+    return instances;
+  }
+
+  /**
+   * The manifest of the new version: one instance, under the new name, on the
+   * routes of the old application.
+   */
+  private ApplicationManifest newVersion(ApplicationManifest manifest, String newName) {
+    List<Route> routes = new ArrayList<>();
+    for (MapRouteRequest route : applicationSetup.routes(manifest)) {
+      StringBuilder sb = new StringBuilder();
+      if (route.getHost() != null) {
+        sb.append(route.getHost()).append('.');
+      }
+      sb.append(route.getDomain());
+      if (route.getPath() != null) {
+        sb.append(route.getPath());
+      }
+      routes.add(Route.builder().route(sb.toString()).build());
+    }
+    return ApplicationManifest.builder()
+            .from(manifest)
+            .name(newName)
+            .instances(1)
+            .domains((Iterable<String>) null)
+            .hosts((Iterable<String>) null)
+            .noHostname(null)
+            .randomRoute(null)
+            .routePath(null)
+            .routes(routes.isEmpty() ? null : routes)
+            .noRoute(routes.isEmpty() ? Boolean.TRUE : null)
+            .build();
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.apache.commons.lang.StringUtils;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.applications.LogsRequest;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+/**
+ * Streams the logs of an application to the build log while it is pushed.
+ * The stream is opened before the push starts and ends when staging has
+ * completed or when it is closed, whichever comes first. When the logs go to
+ * an {@link ApplicationLogFile} instead, the stream also captures the start of
+ * the application and lasts until it is closed; the console only gets a
+ * summary.
+ */
+public class StagingLogStream implements AutoCloseable {
+
+  /**
+   * How long to wait before subscribing again when the application does not
+   * exist yet.
+   */
+  private static final long RETRY_INTERVAL_MILLIS = 1000;
+
+  /**
+   * Staging log lines that mean staging has failed, one regular expression
+   * per line: the stager's own failure message, buildpack detection and
+   * compilation failures, and the staging container running out of memory.
+   * Failures of the application itself, such as the JVM not fitting its
+   * memory limit, are logged by the application rather than the stager, and
+   * are left to {@link CrashLoopDetector}.
+   */
+  static final String DEFAULT_FAILURE_PATTERNS = "^Staging failed\n"
+          + "Failed to compile droplet\n"
+          + "BuildpackCompileFailed\n"
+          + "NoAppDetectedError\n"
+          + "None of the buildpacks detected a compatible application\n"
+          + "Exit status 137";
+
+  private final CloudFoundryOperations cloudFoundryOperations;
+  private final TaskListener listener;
+  private final String appName;
+  private final String prefix;
+  private final MonoProcessor<Void> stop = MonoProcessor.create();
+  private final Thread thread;
+  private final BatchingLogWriter writer;
+  private final RecentLogs recentLogs;
+  private final ApplicationLogFile file;
+  private final List<Pattern> failurePatterns;
+  private final MonoProcessor<Void> failure = MonoProcessor.create();
+  private final AtomicBoolean failed = new AtomicBoolean();
+  private volatile IllegalStateException failureCause;
+
+  private volatile boolean closed;
+  private volatile boolean streamed;
+
+  private StagingLogStream(CloudFoundryOperations cloudFoundryOperations, TaskListener listener, BatchingLogWriter writer, String appName,
+          boolean prefixed, RecentLogs recentLogs, ApplicationLogFile file, List<Pattern> failurePatterns) {
+    this.cloudFoundryOperations = cloudFoundryOperations;
+    this.listener = listener;
+    this.appName = appName;
+    this.prefix = prefixed ? "[" + appName + "] " : "";
+    this.thread = new Thread(this::stream, "Cloud Foundry logs of " + appName);
+    this.thread.setDaemon(true);
+    this.writer = writer;
+    this.recentLogs = recentLogs;
+    this.file = file;
+    this.failurePatterns = failurePatterns;
+  }
+
+  /**
+   * Starts streaming the logs of an application.
+   *
+   * @param cloudFoundryOperations the cloudfoundry operations
+   * @param listener the build listener
+   * @param writer where to print the logs; shared by the whole push, and not
+   * closed with the stream
+   * @param appName the application, which does not have to exist yet
+   * @param prefixed whether to prefix every line with the application name,
+   * for when several applications are pushed at once
+   * @param recentLogs how much of the recent logs to print if nothing was streamed
+   * @param file where to write the logs, or {@code null} for the console
+   * @param failurePatterns staging log lines that mean staging has failed
+   * @return the stream, which must be closed once the push has finished
+   */
+  static StagingLogStream open(CloudFoundryOperations cloudFoundryOperations, TaskListener listener, BatchingLogWriter writer, String appName,
+          boolean prefixed, RecentLogs recentLogs, ApplicationLogFile file, List<Pattern> failurePatterns) {
+    StagingLogStream stream = new StagingLogStream(cloudFoundryOperations, listener, writer, appName, prefixed, recentLogs, file, failurePatterns);
+    stream.thread.start();
+    return stream;
+  }
+
+  private void stream() {
+    while (!closed) {
+      try {
+        cloudFoundryOperations.applications().logs(LogsRequest.builder().name(appName).recent(Boolean.FALSE).build())
+                .takeUntilOther(stop)
+                .doOnNext(this::print)
+                .takeUntil(log -> file == null && isEndOfStaging(log))
+                .blockLast();
+        return;
+      } catch (RuntimeException e) {
+        // the application does not exist until the push has created it
+        try {
+          TimeUnit.MILLISECONDS.sleep(RETRY_INTERVAL_MILLIS);
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+    }
+  }
+
+  private void print(LogMessage log) {
+    streamed = true;
+    checkFailure(log);
+    if (file != null) {
+      try {
+        file.write(log);
+        return;
+      } catch (IOException e) {
+        writer.println("WARNING: could not write to the log file of " + appName + ": " + e.getMessage());
+      }
+    }
+    // runs on a Reactor thread, which must not wait for the build log
+    writer.println(prefix + log.getMessage());
+  }
+
+  /**
+   * Fails {@link #failFast(Mono)} the first time a staging line matches one of
+   * the failure patterns.
+   */
+  private void checkFailure(LogMessage log) {
+    if (!failed.get() && isFailure(failurePatterns, log) && failed.compareAndSet(false, true)) {
+      failureCause = new IllegalStateException("Staging of application " + appName + " failed: " + log.getMessage());
+      failure.onError(failureCause);
+    }
+  }
+
+  /**
+   * @param failurePatterns the staging failure patterns
+   * @param log a log line
+   * @return whether the line is a staging line matching one of the patterns
+   */
+  static boolean isFailure(List<Pattern> failurePatterns, LogMessage log) {
+    if (!"STG".equals(log.getSourceType())) {
+      return false;
+    }
+    return failurePatterns.stream().anyMatch(pattern -> pattern.matcher(log.getMessage()).find());
+  }
+
+  /**
+   * Makes a push fail as soon as the staging logs show that staging has
+   * failed, instead of when the push itself gives up. The push is cancelled;
+   * cloudfoundry is not told to stop staging, which has failed anyway.
+   *
+   * @param push the push
+   * @param <T> the push result type
+   * @return the push, failing early on a staging failure
+   */
+  @SuppressWarnings("unchecked")
+  <T> Mono<T> failFast(Mono<T> push) {
+    // failure never emits a value, it only errors
+    return Mono.first(push, (Mono<T>) (Mono<?>) failure);
+  }
+
+  /**
+   * For waits that poll rather than subscribe: fails if the staging logs have
+   * shown that staging has failed.
+   *
+   * @throws IllegalStateException if staging has failed
+   */
+  void throwIfFailed() {
+    if (failureCause != null) {
+      throw failureCause;
+    }
+  }
+
+  /**
+   * Compiles the failure patterns, one regular expression per line. Lines that
+   * are not valid regular expressions are matched literally.
+   *
+   * @param patterns the patterns, or blank for {@link #DEFAULT_FAILURE_PATTERNS}
+   * @param listener where to report invalid patterns
+   * @return the compiled patterns
+   */
+  static List<Pattern> compileFailurePatterns(String patterns, TaskListener listener) {
+    List<Pattern> compiled = new ArrayList<>();
+    String source = StringUtils.isBlank(patterns) ? DEFAULT_FAILURE_PATTERNS : patterns;
+    for (String line : source.split("\\r?\\n")) {
+      if (StringUtils.isBlank(line)) {
+        continue;
+      }
+      try {
+        compiled.add(Pattern.compile(line.trim()));
+      } catch (PatternSyntaxException e) {
+        listener.getLogger().println("WARNING: invalid staging failure pattern " + line.trim() + ", matching it literally.");
+        compiled.add(Pattern.compile(Pattern.quote(line.trim())));
+      }
+    }
+    return compiled;
+  }
+
+  /**
+   * Whether a log line is the last one staging writes.
+   */
+  static boolean isEndOfStaging(LogMessage log) {
+    return "STG".equals(log.getSourceType())
+            && (log.getMessage().contains("Uploading complete") || log.getMessage().startsWith("Staging failed"));
+  }
+
+  /**
+   * Prints the recent logs of the application if nothing was streamed, for
+   * example because the push finished before the subscription was set up.
+   *
+   * @param timeout the timeout in seconds
+   */
+  void printRecentIfMissed(long timeout) {
+    if (!streamed) {
+      recentLogs.print(cloudFoundryOperations, listener, appName, timeout);
+    }
+  }
+
+  /**
+   * Ends the stream: the log subscription is cancelled, and the streaming
+   * thread is waited for before the log file is closed, so no line is written
+   * to it afterwards.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    // cancels the log subscription, which ends the streaming thread's wait for it
+    stop.onComplete();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (file != null) {
+      try {
+        file.close();
+      } catch (IOException e) {
+        writer.println("WARNING: could not close the log file of " + appName + ": " + e.getMessage());
+      }
+      writer.println("Logs of application " + appName + ": " + file.getLines() + " lines written to "
+              + ApplicationLogFile.LOG_DIR + "/" + file.getName() + ApplicationLogFile.LOG_EXTENSION
+              + " (see Cloud Foundry Logs on the build page).");
+    }
+  }
+}
@@ -0,0 +1,276 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.TaskListener;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.cloudfoundry.client.CloudFoundryClient;
+import org.cloudfoundry.client.v2.ClientV2Exception;
+import org.cloudfoundry.client.v2.applications.ApplicationEntity;
+import org.cloudfoundry.client.v2.applications.ApplicationInstanceInfo;
+import org.cloudfoundry.client.v2.applications.ApplicationInstancesRequest;
+import org.cloudfoundry.client.v2.applications.ApplicationInstancesResponse;
+import org.cloudfoundry.client.v2.applications.GetApplicationRequest;
+import org.cloudfoundry.client.v2.applications.GetApplicationResponse;
+import org.cloudfoundry.client.v2.applications.RestageApplicationRequest;
+import org.cloudfoundry.client.v2.applications.UpdateApplicationRequest;
+import org.cloudfoundry.operations.CloudFoundryOperations;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+
+/**
+ * Starts applications and waits for their instances, instead of leaving it to
+ * the operations layer, which polls at a fixed rate. The first check comes
+ * soon after the start; the wait between checks then doubles every time
+ * nothing has changed, up to {@link #MAX_POLL_INTERVAL_MILLIS}, and drops back
+ * to {@link #MIN_POLL_INTERVAL_MILLIS} whenever the state of any instance
+ * changes. Every wait reports how long the first instance and all instances
+ * took to run, and gives up early if a {@link CrashLoopDetector} sees the
+ * application crash-looping.
+ */
+public class StartupWait {
+
+  /**
+   * The first wait between checks. Staging or starting an instance rarely
+   * takes less, so polling faster only adds api calls.
+   */
+  static final long MIN_POLL_INTERVAL_MILLIS = 500;
+
+  /**
+   * The longest wait between checks.
+   */
+  static final long MAX_POLL_INTERVAL_MILLIS = 8000;
+
+  private static final String RUNNING = "RUNNING";
+  private static final String CRASHED = "CRASHED";
+
+  private final CloudFoundryClient client;
+  private final CloudFoundryOperations cloudFoundryOperations;
+  private final int crashThreshold;
+  private final Duration timeout;
+  private final TaskListener listener;
+
+  /**
+   * The applications this wait has started, restaged or restarted.
+   */
+  private final Set<String> started = ConcurrentHashMap.newKeySet();
+
+  /**
+   * @param client the cloudfoundry client
+   * @param cloudFoundryOperations the cloudfoundry operations
+   * @param crashThreshold see {@link CrashLoopDetector}
+   * @param timeout how long staging and starting an application may take
+   * together, and the timeout of each request
+   * @param listener the build listener
+   */
+  StartupWait(CloudFoundryClient client, CloudFoundryOperations cloudFoundryOperations, int crashThreshold, Duration timeout, TaskListener listener) {
+    this.client = client;
+    this.cloudFoundryOperations = cloudFoundryOperations;
+    this.crashThreshold = crashThreshold;
+    this.timeout = timeout;
+    this.listener = listener;
+  }
+
+  /**
+   * @param appName the application, which does not have to exist yet
+   * @return a crash loop detector for the application
+   */
+  CrashLoopDetector crashDetector(String appName) {
+    return new CrashLoopDetector(cloudFoundryOperations, appName, crashThreshold, timeout);
+  }
+
+  /**
+   * Starts a stopped application, waits for it to stage if it needs to and
+   * then for all of its instances to run. Staging and starting share one
+   * deadline, which is the timeout, or the manifest's health check timeout
+   * if that is longer.
+   *
+   * @param applicationId the application id
+   * @param manifest the manifest the application was pushed with
+   * @param stagingLogs the staging log stream of the application
+   * @param crashes the crash loop detector of the application
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void start(String applicationId, ApplicationManifest manifest, StagingLogStream stagingLogs, CrashLoopDetector crashes) throws InterruptedException {
+    listener.getLogger().println("Starting application " + manifest.getName());
+    started.add(applicationId);
+    client.applicationsV2().update(UpdateApplicationRequest.builder()
+            .applicationId(applicationId)
+            .state("STARTED")
+            .build())
+            .block(timeout);
+    awaitStarted(applicationId, manifest, stagingLogs, crashes);
+  }
+
+  /**
+   * Restages an application and waits for it to stage and then for all of its
+   * instances to run, with the same deadline as {@link #start}.
+   *
+   * @param applicationId the application id
+   * @param manifest the manifest the application was pushed with
+   * @param stagingLogs the staging log stream of the application
+   * @param crashes the crash loop detector of the application
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void restage(String applicationId, ApplicationManifest manifest, StagingLogStream stagingLogs, CrashLoopDetector crashes) throws InterruptedException {
+    listener.getLogger().println("Restaging application " + manifest.getName());
+    started.add(applicationId);
+    client.applicationsV2().restage(RestageApplicationRequest.builder().applicationId(applicationId).build())
+            .block(timeout);
+    awaitStarted(applicationId, manifest, stagingLogs, crashes);
+  }
+
+  /**
+   * Makes a droplet current, restarts the application with it and waits for
+   * all of its instances to run. Nothing is staged.
+   *
+   * @param applicationId the application id
+   * @param dropletId the droplet to run
+   * @param appName the application name
+   * @param crashes the crash loop detector of the application
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void runDroplet(String applicationId, String dropletId, String appName, CrashLoopDetector crashes) throws InterruptedException {
+    started.add(applicationId);
+    DropletUtils.runDroplet(client, applicationId, dropletId, timeout);
+    awaitAllRunning(applicationId, appName, crashes);
+  }
+
+  /**
+   * @param applicationId the application id
+   * @return whether this wait has started, restaged or restarted the
+   * application, so that a failure may have left it stopped or crashing
+   */
+  boolean hasStarted(String applicationId) {
+    return started.contains(applicationId);
+  }
+
+  private void awaitStarted(String applicationId, ApplicationManifest manifest, StagingLogStream stagingLogs, CrashLoopDetector crashes)
+          throws InterruptedException {
+    String appName = manifest.getName();
+    Duration within = manifest.getTimeout() == null
+            ? timeout : Duration.ofSeconds(Math.max(timeout.getSeconds(), manifest.getTimeout()));
+    long deadline = System.nanoTime() + within.toNanos();
+    ApplicationEntity staged = awaitStaging(applicationId, appName, stagingLogs, deadline);
+    awaitRunning(applicationId, appName, staged.getInstances(), crashes, deadline);
+  }
+
+  /**
+   * Waits until all instances of an application are running.
+   *
+   * @param applicationId the application id
+   * @param appName the application name
+   * @param crashes the crash loop detector of the application
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void awaitAllRunning(String applicationId, String appName, CrashLoopDetector crashes) throws InterruptedException {
+    awaitRunning(applicationId, appName, getApplication(applicationId).getInstances(), crashes);
+  }
+
+  /**
+   * Waits until at least the given number of instances of an application are
+   * running.
+   *
+   * @param applicationId the application id
+   * @param appName the application name
+   * @param expected the number of instances to wait for
+   * @param crashes the crash loop detector of the application
+   * @throws InterruptedException if interrupted while waiting
+   */
+  void awaitRunning(String applicationId, String appName, int expected, CrashLoopDetector crashes) throws InterruptedException {
+    awaitRunning(applicationId, appName, expected, crashes, System.nanoTime() + timeout.toNanos());
+  }
+
+  private void awaitRunning(String applicationId, String appName, int expected, CrashLoopDetector crashes, long deadline)
+          throws InterruptedException {
+    long start = System.nanoTime();
+    long firstRunning = -1;
+    long interval = MIN_POLL_INTERVAL_MILLIS;
+    Map<String, String> lastStates = null;
+    while (true) {
+      Map<String, String> states = instanceStates(applicationId);
+      long running = states.values().stream().filter(RUNNING::equals).count();
+      if (running > 0 && firstRunning < 0) {
+        firstRunning = System.nanoTime();
+      }
+      if (running >= expected && firstRunning < 0) {
+        return; // nothing to wait for
+      }
+      if (running >= expected) {
+        listener.getLogger().println("Application " + appName + ": first instance running after " + seconds(firstRunning - start)
+                + ", " + running + "/" + expected + " instances running after " + seconds(System.nanoTime() - start) + ".");
+        return;
+      }
+      crashes.check(states.values().stream().filter(CRASHED::equals).count());
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException("Only " + running + " of " + expected + " instances of application " + appName + " are running.");
+      }
+      interval = states.equals(lastStates) ? Math.min(interval * 2, MAX_POLL_INTERVAL_MILLIS) : MIN_POLL_INTERVAL_MILLIS;
+      lastStates = states;
+      TimeUnit.MILLISECONDS.sleep(interval);
+    }
+  }
+
+  /**
+   * Waits for the package of a started application to be staged.
+   */
+  private ApplicationEntity awaitStaging(String applicationId, String appName, StagingLogStream stagingLogs, long deadline) throws InterruptedException {
+    long start = System.nanoTime();
+    long interval = MIN_POLL_INTERVAL_MILLIS;
+    String lastState = null;
+    while (true) {
+      ApplicationEntity application = getApplication(applicationId);
+      String state = application.getPackageState();
+      if ("STAGED".equals(state)) {
+        listener.getLogger().println("Application " + appName + " staged after " + seconds(System.nanoTime() - start) + ".");
+        return application;
+      }
+      if ("FAILED".equals(state)) {
+        throw new IllegalStateException("Staging of application " + appName + " failed: " + application.getStagingFailedDescription());
+      }
+      stagingLogs.throwIfFailed();
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException("Timed out waiting for application " + appName + " to stage.");
+      }
+      interval = Objects.equals(state, lastState) ? Math.min(interval * 2, MAX_POLL_INTERVAL_MILLIS) : MIN_POLL_INTERVAL_MILLIS;
+      lastState = state;
+      TimeUnit.MILLISECONDS.sleep(interval);
+    }
+  }
+
+  private ApplicationEntity getApplication(String applicationId) {
+    return client.applicationsV2().get(GetApplicationRequest.builder().applicationId(applicationId).build())
+            .map(GetApplicationResponse::getEntity)
+            .block(timeout);
+  }
+
+  /**
+   * The state of every instance, by index. An application whose instances
+   * are not placed yet has none.
+   */
+  private Map<String, String> instanceStates(String applicationId) {
+    ApplicationInstancesResponse response;
+    try {
+      response = client.applicationsV2().instances(ApplicationInstancesRequest.builder().applicationId(applicationId).build())
+              .block(timeout);
+    } catch (ClientV2Exception e) {
+      return Collections.emptyMap();
+    }
+    Map<String, String> states = new TreeMap<>();
+    for (Map.Entry<String, ApplicationInstanceInfo> instance : response.getInstances().entrySet()) {
+      states.put(instance.getKey(), instance.getValue().getState());
+    }
+    return states;
+  }
+
+  private static String seconds(long nanos) {
+    return String.format("%.1f s", nanos / 1e9);
+  }
+}
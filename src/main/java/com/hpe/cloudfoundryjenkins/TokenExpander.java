@@ -0,0 +1,123 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.TokenMacro;
+
+/**
+ * Expands the token macros of a whole document in a single pass. Only the
+ * macro references themselves ({@code ${NAME}}, {@code ${NAME,arg=value}},
+ * {@code $NAME} and the {@code $$} escape) go through {@link TokenMacro}, and
+ * each distinct reference is expanded once per expander, so text without
+ * macros costs nothing and repeated references cost one expansion.
+ */
+public class TokenExpander {
+
+  /**
+   * The start of a macro reference, in the forms {@link TokenMacro} and
+   * environment variable expansion understand. A {@code $NAME} reference and
+   * the {@code $$} escape are matched whole; a <code>${</code> reference runs
+   * to its closing brace, see {@link #referenceEnd(String, int)}.
+   */
+  static final Pattern MACRO = Pattern.compile("\\$\\$|\\$\\{|\\$[A-Za-z_][A-Za-z0-9_]*");
+
+  private final Run<?, ?> run;
+  private final FilePath workspace;
+  private final TaskListener listener;
+  private final Map<String, String> expansions = new LinkedHashMap<>();
+
+  /**
+   * @param run the build the macros are expanded for
+   * @param workspace the workspace
+   * @param listener the build listener
+   */
+  TokenExpander(Run<?, ?> run, FilePath workspace, TaskListener listener) {
+    this.run = run;
+    this.workspace = workspace;
+    this.listener = listener;
+  }
+
+  /**
+   * Expands every macro reference in a text.
+   *
+   * @param text the text, possibly {@code null}
+   * @return the expanded text
+   * @throws MacroEvaluationException if a macro cannot be expanded
+   * @throws IOException if a macro cannot be expanded
+   * @throws InterruptedException if interrupted while expanding a macro
+   */
+  String expand(String text) throws MacroEvaluationException, IOException, InterruptedException {
+    if (text == null || text.indexOf('$') < 0) {
+      return text;
+    }
+    Matcher matcher = MACRO.matcher(text);
+    StringBuilder expanded = new StringBuilder(text.length());
+    int last = 0;
+    while (last < text.length() && matcher.find(last)) {
+      int end = "${".equals(matcher.group()) ? referenceEnd(text, matcher.start()) : matcher.end();
+      String reference = text.substring(matcher.start(), end);
+      String value = expansions.get(reference);
+      if (value == null) {
+        value = TokenMacro.expandAll(run, workspace, listener, reference);
+        expansions.put(reference, value);
+      }
+      expanded.append(text, last, matcher.start()).append(value);
+      last = end;
+    }
+    return expanded.append(text, last, text.length()).toString();
+  }
+
+  /**
+   * Finds where a <code>${...}</code> reference ends, the way
+   * {@link TokenMacro} reads it: braces nest, and a brace inside a quoted
+   * argument, such as <code>${ENV,var="a}b"}</code>, does not count. A
+   * reference that is not closed on its line takes the rest of the line, which
+   * {@link TokenMacro} then expands as a whole.
+   *
+   * @param text the text
+   * @param start where the reference starts
+   * @return the index just after the reference
+   */
+  static int referenceEnd(String text, int start) {
+    int depth = 0;
+    boolean quoted = false;
+    for (int i = start + 1; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '\n') {
+        return i;
+      } else if (quoted) {
+        if (c == '\\') {
+          i++;
+        } else if (c == '"') {
+          quoted = false;
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == '{') {
+        depth++;
+      } else if (c == '}' && --depth == 0) {
+        return i + 1;
+      }
+    }
+    return text.length();
+  }
+
+  /**
+   * @return every macro reference expanded so far, with its value, in the
+   * order they were first seen
+   */
+  Map<String, String> getExpansions() {
+    return Collections.unmodifiableMap(expansions);
+  }
+}
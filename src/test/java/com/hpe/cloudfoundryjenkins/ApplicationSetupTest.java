@@ -0,0 +1,70 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.util.Arrays;
+import java.util.List;
+import org.cloudfoundry.operations.domains.Domain;
+import org.cloudfoundry.operations.domains.Status;
+import org.cloudfoundry.operations.routes.MapRouteRequest;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ApplicationSetup}.
+ */
+public class ApplicationSetupTest {
+
+  private static final List<Domain> DOMAINS = Arrays.asList(
+          domain("example.com", Status.SHARED),
+          domain("apps.example.com", Status.SHARED),
+          domain("internal.example.com", Status.OWNED));
+
+  private static Domain domain(String name, Status status) {
+    return Domain.builder()
+            .id(name + "-id")
+            .name(name)
+            .status(status)
+            .build();
+  }
+
+  @Test
+  public void testParseRouteUsesTheLongestDomain() {
+    MapRouteRequest request = ApplicationSetup.parseRoute("web", "web.apps.example.com", DOMAINS);
+
+    assertEquals("web", request.getApplicationName());
+    assertEquals("apps.example.com", request.getDomain());
+    assertEquals("web", request.getHost());
+    assertNull(request.getPath());
+  }
+
+  @Test
+  public void testParseRouteWithPathAndDottedHost() {
+    MapRouteRequest request = ApplicationSetup.parseRoute("web", "v2.web.example.com/api/v2", DOMAINS);
+
+    assertEquals("example.com", request.getDomain());
+    assertEquals("v2.web", request.getHost());
+    assertEquals("/api/v2", request.getPath());
+  }
+
+  @Test
+  public void testParseRouteWithoutHost() {
+    MapRouteRequest request = ApplicationSetup.parseRoute("web", "internal.example.com", DOMAINS);
+
+    assertEquals("internal.example.com", request.getDomain());
+    assertNull(request.getHost());
+  }
+
+  @Test
+  public void testParseRouteDoesNotMatchAPartialDomain() {
+    try {
+      // ends with "example.com", but not with ".example.com"
+      ApplicationSetup.parseRoute("web", "webexample.com", DOMAINS);
+      fail("a route without an available domain was accepted");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("webexample.com"));
+    }
+  }
+}
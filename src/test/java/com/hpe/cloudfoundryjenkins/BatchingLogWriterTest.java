@@ -0,0 +1,90 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.TaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link BatchingLogWriter}.
+ */
+public class BatchingLogWriterTest {
+
+  @Test
+  public void testWritesAllLinesInOrder() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (BatchingLogWriter writer = new BatchingLogWriter(new PrintStream(bytes, true, "UTF-8"), 100, 3, 50)) {
+      for (int i = 0; i < 10; i++) {
+        assertTrue("line should be queued", writer.println("line " + i));
+      }
+    }
+    String[] lines = bytes.toString("UTF-8").split(System.lineSeparator());
+    assertEquals("should write every line", 10, lines.length);
+    for (int i = 0; i < 10; i++) {
+      assertEquals("should keep the order", "line " + i, lines[i]);
+    }
+  }
+
+  @Test
+  public void testDropsAndReportsLinesWhenFull() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    OutputStream slow = new OutputStream() {
+      @Override
+      public void write(int b) {
+        bytes.write(b);
+      }
+
+      @Override
+      public void flush() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    BatchingLogWriter writer = new BatchingLogWriter(new PrintStream(slow, false, "UTF-8"), 2, 1, 10);
+    int queued = 0;
+    for (int i = 0; i < 10; i++) {
+      if (writer.println("line " + i)) {
+        queued++;
+      }
+    }
+    assertTrue("some lines should be dropped", writer.getDropped() > 0);
+    assertEquals("every line is either queued or dropped", 10, queued + writer.getDropped());
+    release.countDown();
+    writer.close();
+    long reported = 0;
+    Matcher m = Pattern.compile("\\((\\d+) log lines dropped").matcher(bytes.toString("UTF-8"));
+    while (m.find()) {
+      reported += Long.parseLong(m.group(1));
+    }
+    assertEquals("should report every dropped line", writer.getDropped(), reported);
+  }
+
+  @Test
+  public void testListenerLinesKeepTheirOrderWithQueuedLines() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (BatchingLogWriter writer = new BatchingLogWriter(new PrintStream(bytes, true, "UTF-8"), 100, 3, 50)) {
+      TaskListener listener = writer.listener();
+      listener.getLogger().println("push started");
+      writer.println("streamed 1");
+      listener.getLogger().println("staging");
+      writer.println("streamed 2");
+      writer.flush();
+      assertEquals("flush should write everything queued so far",
+              String.join(System.lineSeparator(), "push started", "streamed 1", "staging", "streamed 2") + System.lineSeparator(),
+              bytes.toString("UTF-8"));
+    }
+  }
+}
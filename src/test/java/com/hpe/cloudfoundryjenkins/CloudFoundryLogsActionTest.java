@@ -0,0 +1,93 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import com.gargoylesoftware.htmlunit.Page;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.doppler.MessageType;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link CloudFoundryLogsAction} and {@link ApplicationLogFile}.
+ */
+public class CloudFoundryLogsActionTest {
+
+  @ClassRule
+  public static JenkinsRule j = new JenkinsRule();
+
+  private static LogMessage message(String sourceType, String text) {
+    return LogMessage.builder()
+            .applicationId("app-id")
+            .message(text)
+            .messageType(MessageType.OUT)
+            .sourceInstance("0")
+            .sourceType(sourceType)
+            .timestamp(System.nanoTime())
+            .build();
+  }
+
+  private static String get(FreeStyleBuild build, String query) throws Exception {
+    JenkinsRule.WebClient wc = j.createWebClient();
+    Page page = wc.goTo(build.getUrl() + "cloudfoundry-logs/log?" + query, "text/plain");
+    return page.getWebResponse().getContentAsString();
+  }
+
+  @Test
+  public void testLogFilteredBySource() throws Exception {
+    FreeStyleProject project = j.createFreeStyleProject();
+    FreeStyleBuild build = j.buildAndAssertSuccess(project);
+    try (ApplicationLogFile file = ApplicationLogFile.create(build, "hello-java")) {
+      file.write(message("STG", "Downloaded app package"));
+      file.write(message("CELL", "Creating container"));
+      file.write(message("STG", "Uploading droplet"));
+    }
+
+    assertEquals("Downloaded app package\nCreating container\nUploading droplet\n", get(build, "app=hello-java"));
+    assertEquals("Downloaded app package\nUploading droplet\n", get(build, "app=hello-java&source=STG"));
+    assertEquals("Creating container\n", get(build, "app=hello-java&source=CELL"));
+    assertEquals("", get(build, "app=hello-java&source=APP/PROC/WEB"));
+  }
+
+  @Test
+  public void testSameApplicationTwiceKeepsBothLogs() throws Exception {
+    FreeStyleProject project = j.createFreeStyleProject();
+    FreeStyleBuild build = j.buildAndAssertSuccess(project);
+    // pushed twice, as by a rolling deployment, and a name that sanitizes the same way
+    try (ApplicationLogFile first = ApplicationLogFile.create(build, "hello java")) {
+      first.write(message("STG", "first push"));
+    }
+    try (ApplicationLogFile second = ApplicationLogFile.create(build, "hello java")) {
+      second.write(message("STG", "second push"));
+    }
+    try (ApplicationLogFile other = ApplicationLogFile.create(build, "hello_java")) {
+      other.write(message("STG", "other application"));
+    }
+
+    CloudFoundryLogsAction action = build.getAction(CloudFoundryLogsAction.class);
+    assertEquals(3, action.getLogs().size());
+    assertEquals("first push\n", get(build, "app=hello_java"));
+    assertEquals("second push\n", get(build, "app=hello_java-2"));
+    assertEquals("other application\n", get(build, "app=hello_java-3"));
+  }
+
+  @Test
+  public void testUnknownLogIsNotFound() throws Exception {
+    FreeStyleProject project = j.createFreeStyleProject();
+    FreeStyleBuild build = j.buildAndAssertSuccess(project);
+    try (ApplicationLogFile file = ApplicationLogFile.create(build, "hello-java")) {
+      file.write(message("STG", "Downloaded app package"));
+    }
+
+    JenkinsRule.WebClient wc = j.createWebClient();
+    wc.getOptions().setThrowExceptionOnFailingStatusCode(false);
+    Page page = wc.goTo(build.getUrl() + "cloudfoundry-logs/log?app=../../config", null);
+    assertEquals(404, page.getWebResponse().getStatusCode());
+  }
+}
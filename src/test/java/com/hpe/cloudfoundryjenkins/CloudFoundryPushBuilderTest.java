@@ -60,7 +60,9 @@ import reactor.core.publisher.Flux;
 
 import java.io.IOException;
 import java.net.URL;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.regex.Pattern;
@@ -68,6 +70,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
@@ -768,5 +771,193 @@ public class CloudFoundryPushBuilderTest {
             content.contains("State [id=1, stateCode=MA, name=Massachusetts]"));
   }
 
+  private static ManifestChoice helloJava(String command, EnvironmentVariable... envVars) {
+    return new ManifestChoice("jenkinsConfig", null, "hello-java", "1g", "", null, null, "false",
+            "hello-java-2.0.0.war", "", "", command, "",
+            new ArrayList<>(Arrays.asList(envVars)), new ArrayList<>());
+  }
+
+  private static String currentDropletId(String appName) {
+    String applicationId = cloudFoundryOperations.applications().get(GetApplicationRequest.builder().name(appName).build()).block().getId();
+    return DropletUtils.currentDropletId(client, applicationId, Duration.ofSeconds(60));
+  }
+
+  @Test
+  @WithTimeout(600)
+  public void testPerformRollbackOnFailure() throws Exception {
+    // Skip all tests of this class if no test CF platform is specified
+    assumeNotNull(TEST_TARGET);
+    FreeStyleProject project = j.createFreeStyleProject();
+    project.setScm(new ExtractResourceSCM(getClass().getResource("cloudfoundry-hello-java.zip")));
+    CloudFoundryPushBuilder cf1 = new CloudFoundryPushBuilder(TEST_TARGET, TEST_ORG, TEST_SPACE,
+            "testCredentialsId");
+    cf1.setSelfSigned("true");
+    cf1.setManifestChoice(helloJava(""));
+    project.getBuildersList().add(cf1);
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    assertTrue("Build 1 did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+    String dropletId = currentDropletId("hello-java");
+
+    project.getBuildersList().remove(cf1);
+    // a start command that exits straight away makes every instance crash
+    CloudFoundryPushBuilder cf2 = new CloudFoundryPushBuilder(TEST_TARGET, TEST_ORG, TEST_SPACE,
+            "testCredentialsId");
+    cf2.setSelfSigned("true");
+    cf2.setManifestChoice(helloJava("false"));
+    cf2.setRollbackOnFailure(true);
+    project.getBuildersList().add(cf2);
+    build = project.scheduleBuild2(0).get();
+
+    String log = FileUtils.readFileToString(build.getLogFile());
+    System.out.println(log);
+
+    assertTrue("Build 2 succeeded where it should have failed", build.getResult().isWorseOrEqualTo(Result.FAILURE));
+    assertTrue("Build 2 did not roll back", log.contains("Application hello-java rolled back."));
+    assertEquals("Application does not run its old droplet", dropletId, currentDropletId("hello-java"));
+    HttpResponse response = httpClient.execute(new HttpGet(getAppURIs("hello-java").get(0)));
+    assertEquals("Get request did not respond 200 OK", 200, response.getStatusLine().getStatusCode());
+  }
+
+  @Test
+  @WithTimeout(600)
+  public void testRollbackBuilder() throws Exception {
+    // Skip all tests of this class if no test CF platform is specified
+    assumeNotNull(TEST_TARGET);
+    FreeStyleProject project = j.createFreeStyleProject();
+    project.setScm(new ExtractResourceSCM(getClass().getResource("cloudfoundry-hello-java.zip")));
+    CloudFoundryPushBuilder cf1 = new CloudFoundryPushBuilder(TEST_TARGET, TEST_ORG, TEST_SPACE,
+            "testCredentialsId");
+    cf1.setSelfSigned("true");
+    cf1.setManifestChoice(helloJava(""));
+    project.getBuildersList().add(cf1);
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    assertTrue("Build 1 did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+    String dropletId = currentDropletId("hello-java");
+
+    project.getBuildersList().remove(cf1);
+    ManifestChoice changed = helloJava("", new EnvironmentVariable("VERSION", "2"));
+    CloudFoundryPushBuilder cf2 = new CloudFoundryPushBuilder(TEST_TARGET, TEST_ORG, TEST_SPACE,
+            "testCredentialsId");
+    cf2.setSelfSigned("true");
+    cf2.setManifestChoice(changed);
+    project.getBuildersList().add(cf2);
+    build = project.scheduleBuild2(0).get();
+    assertTrue("Build 2 did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+    assertNotEquals("Build 2 did not stage a new droplet", dropletId, currentDropletId("hello-java"));
+
+    project.getBuildersList().remove(cf2);
+    CloudFoundryRollbackBuilder rollback = new CloudFoundryRollbackBuilder(TEST_TARGET, TEST_ORG, TEST_SPACE,
+            "testCredentialsId", "hello-java");
+    rollback.setSelfSigned("true");
+    project.getBuildersList().add(rollback);
+    build = project.scheduleBuild2(0).get();
+
+    String log = FileUtils.readFileToString(build.getLogFile());
+    System.out.println(log);
+
+    assertTrue("Rollback did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+    assertEquals("Application does not run its old droplet", dropletId, currentDropletId("hello-java"));
+  }
+
+  @Test
+  @WithTimeout(600)
+  public void testPerformBlueGreen() throws Exception {
+    // Skip all tests of this class if no test CF platform is specified
+    assumeNotNull(TEST_TARGET);
+    FreeStyleProject project = j.createFreeStyleProject();
+    project.setScm(new ExtractResourceSCM(getClass().getResource("cloudfoundry-hello-java.zip")));
+    CloudFoundryPushBuilder cf1 = new CloudFoundryPushBuilder(TEST_TARGET, TEST_ORG, TEST_SPACE,
+            "testCredentialsId");
+    cf1.setSelfSigned("true");
+    cf1.setManifestChoice(helloJava(""));
+    project.getBuildersList().add(cf1);
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    assertTrue("Build 1 did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+    String oldId = cloudFoundryOperations.applications().get(GetApplicationRequest.builder().name("hello-java").build()).block().getId();
+
+    project.getBuildersList().remove(cf1);
+    CloudFoundryPushBuilder cf2 = new CloudFoundryPushBuilder(TEST_TARGET, TEST_ORG, TEST_SPACE,
+            "testCredentialsId");
+    cf2.setSelfSigned("true");
+    cf2.setManifestChoice(helloJava("", new EnvironmentVariable("VERSION", "2")));
+    cf2.setDeploymentStrategy(DeploymentStrategy.BLUE_GREEN);
+    project.getBuildersList().add(cf2);
+    build = project.scheduleBuild2(0).get();
+
+    String log = FileUtils.readFileToString(build.getLogFile());
+    System.out.println(log);
+
+    assertTrue("Build 2 did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+    List<String> names = cloudFoundryOperations.applications().list().map(app -> app.getName()).collectList().block();
+    assertEquals("The old or the green application is left", 1, names.size());
+    String newId = cloudFoundryOperations.applications().get(GetApplicationRequest.builder().name("hello-java").build()).block().getId();
+    assertNotEquals("The application was not replaced", oldId, newId);
+    HttpResponse response = httpClient.execute(new HttpGet(getAppURIs("hello-java").get(0)));
+    assertEquals("Get request did not respond 200 OK", 200, response.getStatusLine().getStatusCode());
+
+    // the old droplets went with the old application
+    project.getBuildersList().remove(cf2);
+    CloudFoundryRollbackBuilder rollback = new CloudFoundryRollbackBuilder(TEST_TARGET, TEST_ORG, TEST_SPACE,
+            "testCredentialsId", "hello-java");
+    rollback.setSelfSigned("true");
+    project.getBuildersList().add(rollback);
+    build = project.scheduleBuild2(0).get();
+    log = FileUtils.readFileToString(build.getLogFile());
+    assertTrue("Rollback succeeded where it should have failed", build.getResult().isWorseOrEqualTo(Result.FAILURE));
+    assertTrue("Rollback did not explain why it failed", log.contains("used the blue-green deployment strategy"));
+  }
+
+  @Test
+  @WithTimeout(900)
+  public void testPerformRolling() throws Exception {
+    // Skip all tests of this class if no test CF platform is specified
+    assumeNotNull(TEST_TARGET);
+    FreeStyleProject project = j.createFreeStyleProject();
+    project.setScm(new ExtractResourceSCM(getClass().getResource("cloudfoundry-hello-java.zip")));
+    ManifestChoice manifest1
+            = new ManifestChoice("jenkinsConfig", null, "hello-java", "512m", "", "2", null, "false",
+                    "hello-java-2.0.0.war", "", "", "", "",
+                    new ArrayList<>(), new ArrayList<>());
+    CloudFoundryPushBuilder cf1 = new CloudFoundryPushBuilder(TEST_TARGET, TEST_ORG, TEST_SPACE,
+            "testCredentialsId");
+    cf1.setSelfSigned("true");
+    cf1.setManifestChoice(manifest1);
+    project.getBuildersList().add(cf1);
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    assertTrue("Build 1 did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+
+    project.getBuildersList().remove(cf1);
+    ManifestChoice manifest2
+            = new ManifestChoice("jenkinsConfig", null, "hello-java", "512m", "", "2", null, "false",
+                    "hello-java-2.0.0.war", "", "", "", "",
+                    new ArrayList<>(Arrays.asList(new EnvironmentVariable("VERSION", "2"))), new ArrayList<>());
+    CloudFoundryPushBuilder cf2 = new CloudFoundryPushBuilder(TEST_TARGET, TEST_ORG, TEST_SPACE,
+            "testCredentialsId");
+    cf2.setSelfSigned("true");
+    cf2.setManifestChoice(manifest2);
+    cf2.setDeploymentStrategy(DeploymentStrategy.ROLLING);
+    project.getBuildersList().add(cf2);
+    build = project.scheduleBuild2(0).get();
+
+    String log = FileUtils.readFileToString(build.getLogFile());
+    System.out.println(log);
+
+    assertTrue("Build 2 did not succeed", build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+    List<String> names = cloudFoundryOperations.applications().list().map(app -> app.getName()).collectList().block();
+    assertEquals("The old or the rolling application is left", 1, names.size());
+    assertEquals(2, (int) cloudFoundryOperations.applications().get(GetApplicationRequest.builder().name("hello-java").build()).block().getInstances());
+    HttpResponse response = httpClient.execute(new HttpGet(getAppURIs("hello-java").get(0)));
+    assertEquals("Get request did not respond 200 OK", 200, response.getStatusLine().getStatusCode());
+
+    project.getBuildersList().remove(cf2);
+    CloudFoundryRollbackBuilder rollback = new CloudFoundryRollbackBuilder(TEST_TARGET, TEST_ORG, TEST_SPACE,
+            "testCredentialsId", "hello-java");
+    rollback.setSelfSigned("true");
+    project.getBuildersList().add(rollback);
+    build = project.scheduleBuild2(0).get();
+    log = FileUtils.readFileToString(build.getLogFile());
+    assertTrue("Rollback succeeded where it should have failed", build.getResult().isWorseOrEqualTo(Result.FAILURE));
+    assertTrue("Rollback did not explain why it failed", log.contains("used the rolling deployment strategy"));
+  }
 
 }
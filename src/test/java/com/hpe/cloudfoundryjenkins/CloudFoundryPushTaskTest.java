@@ -3,10 +3,31 @@
  */
 package com.hpe.cloudfoundryjenkins;
 
+import com.hpe.cloudfoundryjenkins.CloudFoundryDeploymentAction.Deployment;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushTask.UpdateKind;
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
 import hudson.model.TaskListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Set;
+import java.util.TreeSet;
+import org.apache.commons.io.FileUtils;
+import org.cloudfoundry.operations.applications.ApplicationDetail;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
 import org.cloudfoundry.reactor.ConnectionContext;
 import org.cloudfoundry.reactor.DefaultConnectionContext;
+import org.junit.ClassRule;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
 
 import static org.junit.Assert.*;
 
@@ -17,6 +38,12 @@ import static org.junit.Assert.*;
  */
 public class CloudFoundryPushTaskTest {
 
+  @ClassRule
+  public static JenkinsRule j = new JenkinsRule();
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
   @Test
   public void testCreateConnectionContextJustHost() throws Exception {
     String targetHost = "api.the.cloudfoundry.host";
@@ -72,4 +99,117 @@ public class CloudFoundryPushTaskTest {
     assertEquals("should explicitly set the port", port ,c.getPort().get());
   }
 
+  @Test
+  public void testUpdateKind() throws Exception {
+    ApplicationDetail started = application("STARTED", 1000L);
+    Deployment same = deployment("bits", "config", "java_buildpack", "cflinuxfs2", 1000L);
+    Deployment newBuildpack = deployment("bits", "config", "go_buildpack", "cflinuxfs2", 1000L);
+    Deployment newStack = deployment("bits", "config", "java_buildpack", "cflinuxfs3", 1000L);
+    Deployment newBits = deployment("other", "config", "java_buildpack", "cflinuxfs2", 1000L);
+    Deployment newConfig = deployment("bits", "other", "java_buildpack", "cflinuxfs2", 1000L);
+    Deployment noBits = deployment(null, "config", "java_buildpack", "cflinuxfs2", 1000L);
+    Deployment previous = deployment("bits", "config", "java_buildpack", "cflinuxfs2", 1000L);
+    Deployment notUploaded = deployment("bits", "config", "java_buildpack", "cflinuxfs2", null);
+
+    // has no bits, so a deployment without a bits digest cannot get one
+    ApplicationManifest manifest = ApplicationManifest.builder().name("app").build();
+
+    Object[][] table = {
+      // previous, deployment, current, expected
+      {previous, same, started, UpdateKind.SCALE},
+      {previous, newBuildpack, started, UpdateKind.RESTAGE},
+      {previous, newStack, started, UpdateKind.RESTAGE},
+      {previous, newBits, started, UpdateKind.PUSH},
+      {previous, newConfig, started, UpdateKind.PUSH},
+      {previous, noBits, started, UpdateKind.PUSH},
+      {null, same, started, UpdateKind.PUSH},
+      {previous, same, null, UpdateKind.PUSH},
+      {previous, same, application("STOPPED", 1000L), UpdateKind.PUSH},
+      // someone uploaded other bits since the last push
+      {previous, same, application("STARTED", 2000L), UpdateKind.PUSH},
+      {previous, same, application("STARTED", null), UpdateKind.PUSH},
+      {notUploaded, same, started, UpdateKind.PUSH},
+    };
+    for (int i = 0; i < table.length; i++) {
+      Object[] row = table[i];
+      assertEquals("row " + i, row[3], CloudFoundryPushTask.updateKind((Deployment) row[0], (Deployment) row[1], (ApplicationDetail) row[2], manifest));
+    }
+  }
+
+  @Test
+  public void testBitsAreOnlyDigestedWhenTheConfigurationMatches() throws Exception {
+    File bits = tempFolder.newFolder("bits");
+    FileUtils.writeStringToFile(new File(bits, "index.html"), "hello");
+    ApplicationManifest manifest = ApplicationManifest.builder().name("app").path(bits.toPath()).build();
+    Deployment previous = deployment("bits", "config", "java_buildpack", "cflinuxfs2", 1000L);
+
+    Deployment newConfig = deployment(null, "other", "java_buildpack", "cflinuxfs2", 1000L);
+    assertEquals(UpdateKind.PUSH, CloudFoundryPushTask.updateKind(previous, newConfig, application("STARTED", 1000L), manifest));
+    assertNull("the bits should not be read when the configuration changed", newConfig.bitsDigest);
+
+    Deployment sameConfig = deployment(null, "config", "java_buildpack", "cflinuxfs2", 1000L);
+    assertEquals(UpdateKind.PUSH, CloudFoundryPushTask.updateKind(previous, sameConfig, application("STARTED", 1000L), manifest));
+    assertEquals(ManifestUtils.bitsDigest(manifest), sameConfig.bitsDigest);
+  }
+
+  private static Deployment deployment(String bitsDigest, String configurationDigest, String buildpack, String stack, Long lastUploaded) {
+    Deployment deployment = new Deployment("api.the.cloudfoundry.host", "org", "space", "app");
+    deployment.bitsDigest = bitsDigest;
+    deployment.configurationDigest = configurationDigest;
+    deployment.buildpack = buildpack;
+    deployment.stack = stack;
+    deployment.lastUploaded = lastUploaded;
+    return deployment;
+  }
+
+  private static ApplicationDetail application(String requestedState, Long lastUploaded) {
+    return ApplicationDetail.builder()
+        .id("app-id")
+        .name("app")
+        .diskQuota(1024)
+        .instances(1)
+        .memoryLimit(512)
+        .requestedState(requestedState)
+        .runningInstances(1)
+        .stack("cflinuxfs2")
+        .lastUploaded(lastUploaded == null ? null : new Date(lastUploaded))
+        .build();
+  }
+
+  @Test
+  public void testCopyOfAgentFilesIsDeletedWhenThePushStops() throws Exception {
+    FreeStyleProject project = j.createFreeStyleProject();
+    project.setAssignedNode(j.createOnlineSlave());
+    project.getBuildersList().add(new TestBuilder() {
+      @Override
+      public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+        build.getWorkspace().child("manifest.yml").write("applications:\n- name: hello-java\n", "UTF-8");
+        build.getWorkspace().child("index.html").write("hello", "UTF-8");
+        return true;
+      }
+    });
+    // the files are copied from the agent while connecting, which fails without credentials
+    project.getBuildersList().add(new CloudFoundryPushBuilder("https://api.example.com", "org", "space", "noSuchCredentialsId"));
+    Set<String> before = appDirs();
+
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+    assertEquals(Result.FAILURE, build.getResult());
+    assertEquals("the copy on the master should be deleted", before, appDirs());
+  }
+
+  /**
+   * The temporary directories the application files of agent builds are
+   * copied to.
+   */
+  private static Set<String> appDirs() {
+    Set<String> appDirs = new TreeSet<>();
+    File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles((dir, name) -> name.startsWith("appDir"));
+    if (files != null) {
+      for (File file : files) {
+        appDirs.add(file.getName());
+      }
+    }
+    return appDirs;
+  }
 }
@@ -0,0 +1,67 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Result;
+import org.apache.commons.io.FileUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * Tests for {@link CloudFoundryRollbackBuilder} that need no Cloud Foundry.
+ * Rolling back a pushed application is tested in
+ * {@link CloudFoundryPushBuilderTest}.
+ */
+public class CloudFoundryRollbackBuilderTest {
+
+  @ClassRule
+  public static JenkinsRule j = new JenkinsRule();
+
+  @Test
+  public void testRollbackWithoutCredentials() throws Exception {
+    FreeStyleProject project = j.createFreeStyleProject();
+    CloudFoundryRollbackBuilder rollback = new CloudFoundryRollbackBuilder("https://api.example.com", "org", "space",
+            "noSuchCredentialsId", "hello-java");
+    project.getBuildersList().add(rollback);
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+    String log = FileUtils.readFileToString(build.getLogFile());
+    assertEquals(Result.FAILURE, build.getResult());
+    assertTrue(log.contains("ERROR: No credentials have been given."));
+  }
+
+  @Test
+  public void testRollbackAfterBlueGreenDeployment() throws Exception {
+    FreeStyleProject project = j.createFreeStyleProject();
+    FreeStyleBuild pushed = project.scheduleBuild2(0).get();
+    CloudFoundryDeploymentAction.Deployment deployment = new CloudFoundryDeploymentAction.Deployment("https://api.example.com", "org", "space", "hello-java");
+    deployment.dropletId = "new-droplet";
+    deployment.strategy = DeploymentStrategy.BLUE_GREEN;
+    CloudFoundryDeploymentAction.record(pushed, deployment);
+
+    project.getBuildersList().add(new CloudFoundryRollbackBuilder("https://api.example.com", "org", "space",
+            "noSuchCredentialsId", "hello-java"));
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+    String log = FileUtils.readFileToString(build.getLogFile());
+    assertEquals(Result.FAILURE, build.getResult());
+    assertTrue(log.contains("used the blue-green deployment strategy"));
+  }
+
+  @Test
+  public void testPluginTimeoutDefaults() throws Exception {
+    CloudFoundryRollbackBuilder rollback = new CloudFoundryRollbackBuilder("https://api.example.com", "org", "space",
+            "testCredentialsId", "hello-java");
+    assertEquals(String.valueOf(CloudFoundryUtils.DEFAULT_PLUGIN_TIMEOUT), rollback.getPluginTimeout());
+    rollback.setPluginTimeout("-1");
+    assertEquals(String.valueOf(CloudFoundryUtils.DEFAULT_PLUGIN_TIMEOUT), rollback.getPluginTimeout());
+    rollback.setPluginTimeout("300");
+    assertEquals("300", rollback.getPluginTimeout());
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ManifestCache}.
+ */
+public class ManifestCacheTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Before
+  public void clearCache() {
+    ManifestCache.clear();
+  }
+
+  private static List<Map<String, Object>> applications(Path location, String name, String raw, Map<String, String> expansions,
+          String expanded) throws Exception {
+    return ManifestCache.applications(location, name, raw, expansions, expanded, Collections.emptyMap());
+  }
+
+  @Test
+  public void testReusesParsedManifest() throws Exception {
+    Path location = new File(tempFolder.getRoot(), "manifest.yml").toPath();
+    String raw = "applications:\n- name: ${NAME}\n";
+
+    List<Map<String, Object>> first = applications(location, "manifest.yml", raw, Collections.singletonMap("${NAME}", "web"), "applications:\n- name: web\n");
+    List<Map<String, Object>> again = applications(location, "manifest.yml", raw, Collections.singletonMap("${NAME}", "web"), "applications:\n- name: web\n");
+    List<Map<String, Object>> otherValue = applications(location, "manifest.yml", raw, Collections.singletonMap("${NAME}", "api"), "applications:\n- name: api\n");
+
+    assertSame("the same manifest and macro values should not be parsed again", first, again);
+    assertEquals("api", otherValue.get(0).get("name"));
+  }
+
+  @Test
+  public void testInheritedChangeInvalidates() throws Exception {
+    File base = new File(tempFolder.getRoot(), "base.yml");
+    FileUtils.writeStringToFile(base, "instances: 2\n");
+    Path location = new File(tempFolder.getRoot(), "manifest.yml").toPath();
+    String raw = "inherit: base.yml\napplications:\n- name: web\n";
+
+    List<Map<String, Object>> first = applications(location, "manifest.yml", raw, Collections.emptyMap(), raw);
+    FileUtils.writeStringToFile(base, "instances: 5\n");
+    List<Map<String, Object>> changed = applications(location, "manifest.yml", raw, Collections.emptyMap(), raw);
+
+    assertEquals(2, first.get(0).get("instances"));
+    assertEquals(5, changed.get(0).get("instances"));
+  }
+
+  @Test
+  public void testReusesManifestParsedAtAnotherLocation() throws Exception {
+    // an agent build may read its manifests from another workspace than the last build
+    File firstBuild = tempFolder.newFolder("build-1");
+    File secondBuild = tempFolder.newFolder("build-2");
+    for (File folder : new File[]{firstBuild, secondBuild}) {
+      FileUtils.writeStringToFile(new File(folder, "services/base.yml"), "instances: 2\n");
+    }
+    String raw = "inherit: base.yml\napplications:\n- name: web\n  path: target/web.war\n";
+
+    List<Map<String, Object>> first = applications(new File(firstBuild, "services/manifest.yml").toPath(), "services/manifest.yml",
+            raw, Collections.emptyMap(), raw);
+    List<Map<String, Object>> second = applications(new File(secondBuild, "services/manifest.yml").toPath(), "services/manifest.yml",
+            raw, Collections.emptyMap(), raw);
+
+    assertSame("the entry should be used at the new location", first, second);
+    assertEquals("relative paths are resolved when the manifest is built", "target/web.war", second.get(0).get("path"));
+
+    FileUtils.writeStringToFile(new File(secondBuild, "services/base.yml"), "instances: 5\n");
+    List<Map<String, Object>> changed = applications(new File(secondBuild, "services/manifest.yml").toPath(), "services/manifest.yml",
+            raw, Collections.emptyMap(), raw);
+    assertEquals("the inherited manifest at the new location should be checked", 5, changed.get(0).get("instances"));
+  }
+
+  @Test
+  public void testInheritedManifestOutsideTheDirectoryIsNotReusedElsewhere() throws Exception {
+    File firstBuild = tempFolder.newFolder("build-1");
+    File secondBuild = tempFolder.newFolder("build-2");
+    FileUtils.writeStringToFile(new File(firstBuild, "base.yml"), "instances: 2\n");
+    FileUtils.writeStringToFile(new File(secondBuild, "nested/base.yml"), "instances: 2\n");
+    String raw = "inherit: ../base.yml\napplications:\n- name: web\n";
+
+    List<Map<String, Object>> first = applications(new File(firstBuild, "app/manifest.yml").toPath(), "app/manifest.yml",
+            raw, Collections.emptyMap(), raw);
+    List<Map<String, Object>> second = applications(new File(secondBuild, "nested/app/manifest.yml").toPath(), "app/manifest.yml",
+            raw, Collections.emptyMap(), raw);
+
+    assertNotSame(first, second);
+    assertEquals(2, second.get(0).get("instances"));
+  }
+}
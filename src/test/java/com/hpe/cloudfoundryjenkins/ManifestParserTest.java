@@ -0,0 +1,189 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.cloudfoundry.operations.applications.ApplicationHealthCheck;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.operations.applications.ApplicationManifestUtils;
+import org.cloudfoundry.operations.applications.Docker;
+import org.cloudfoundry.operations.applications.Route;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.yaml.snakeyaml.error.YAMLException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link ManifestParser}.
+ */
+public class ManifestParserTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testTopLevelAttributesApplyToEveryApplication() throws Exception {
+    File folder = tempFolder.newFolder();
+    String yaml = "---\n"
+            + "memory: 1G\n"
+            + "env:\n"
+            + "  SHARED: everywhere\n"
+            + "applications:\n"
+            + "- name: web\n"
+            + "  path: target/web.war\n"
+            + "  env:\n"
+            + "    OWN: web\n"
+            + "- name: worker\n"
+            + "  memory: 256M\n";
+
+    List<ApplicationManifest> manifests = ManifestParser.parse(yaml, new File(folder, "manifest.yml").toPath());
+
+    assertEquals(2, manifests.size());
+    ApplicationManifest web = manifests.get(0);
+    assertEquals("web", web.getName());
+    assertEquals(Integer.valueOf(1024), web.getMemory());
+    assertEquals(new File(folder, "target/web.war").toPath(), web.getPath());
+    assertEquals("everywhere", web.getEnvironmentVariables().get("SHARED"));
+    assertEquals("web", web.getEnvironmentVariables().get("OWN"));
+    assertEquals(Integer.valueOf(256), manifests.get(1).getMemory());
+  }
+
+  @Test
+  public void testInheritIsResolvedAgainstTheManifestLocation() throws Exception {
+    File folder = tempFolder.newFolder();
+    FileUtils.writeStringToFile(new File(folder, "base.yml"), "---\ninstances: 3\nstack: cflinuxfs2\n");
+    String yaml = "---\ninherit: base.yml\nstack: cflinuxfs3\napplications:\n- name: hello-java\n";
+
+    List<ApplicationManifest> manifests = ManifestParser.parse(yaml, new File(folder, "manifest.yml").toPath());
+
+    assertEquals(1, manifests.size());
+    assertEquals(Integer.valueOf(3), manifests.get(0).getInstances());
+    assertEquals("the inheriting manifest should win", "cflinuxfs3", manifests.get(0).getStack());
+  }
+
+  @Test
+  public void testTagsDoNotConstructJavaObjects() throws Exception {
+    File folder = tempFolder.newFolder();
+    String yaml = "---\napplications:\n- name: !!java.io.File [\"/tmp\"]\n";
+
+    try {
+      ManifestParser.parse(yaml, new File(folder, "manifest.yml").toPath());
+      fail("a Java tag should not be constructed");
+    } catch (YAMLException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("java.io.File"));
+    }
+  }
+
+  @Test
+  public void testRoutesMustBeAListOfRoutes() throws Exception {
+    File folder = tempFolder.newFolder();
+    File location = new File(folder, "manifest.yml");
+
+    try {
+      ManifestParser.parse("---\napplications:\n- name: web\n  routes: web.example.com\n", location.toPath());
+      fail("routes that are not a list should be refused");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("routes"));
+    }
+    try {
+      ManifestParser.parse("---\napplications:\n- name: web\n  routes:\n  - web.example.com\n", location.toPath());
+      fail("a routes item that is not a map should be refused");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("routes item"));
+    }
+    try {
+      ManifestParser.parse("---\napplications:\n- name: web\n  routes:\n  - url: web.example.com\n", location.toPath());
+      fail("a routes item without a route should be refused");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("route"));
+    }
+  }
+
+  @Test
+  public void testDockerMustBeAMap() throws Exception {
+    File folder = tempFolder.newFolder();
+
+    try {
+      ManifestParser.parse("---\napplications:\n- name: web\n  docker: cloudfoundry/hello\n",
+              new File(folder, "manifest.yml").toPath());
+      fail("a docker attribute that is not a map should be refused");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("docker"));
+    }
+  }
+
+  @Test
+  public void testInheritLoopIsRefused() throws Exception {
+    File folder = tempFolder.newFolder();
+    FileUtils.writeStringToFile(new File(folder, "base.yml"), "---\ninherit: manifest.yml\ninstances: 3\n");
+    String yaml = "---\ninherit: base.yml\napplications:\n- name: hello-java\n";
+
+    try {
+      ManifestParser.parse(yaml, new File(folder, "manifest.yml").toPath());
+      fail("manifests that inherit each other should be refused");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("loop"));
+    }
+  }
+
+  @Test
+  public void testEveryAttributeReadsLikeTheClient() throws Exception {
+    File folder = tempFolder.newFolder();
+    Map<String, ApplicationManifest.Builder> attributes = new LinkedHashMap<>();
+    attributes.put("buildpack", ApplicationManifest.builder().buildpack("java_buildpack"));
+    attributes.put("command", ApplicationManifest.builder().command("bin/start"));
+    attributes.put("disk_quota", ApplicationManifest.builder().disk(2048));
+    attributes.put("docker", ApplicationManifest.builder().docker(Docker.builder().image("cloudfoundry/hello").username("ci").build()));
+    attributes.put("domains", ApplicationManifest.builder().domains("example.com", "example.org"));
+    attributes.put("env", ApplicationManifest.builder().environmentVariables(Collections.singletonMap("GREETING", "hello")));
+    attributes.put("health-check-http-endpoint", ApplicationManifest.builder().healthCheckHttpEndpoint("/health"));
+    attributes.put("health-check-type", ApplicationManifest.builder().healthCheckType(ApplicationHealthCheck.HTTP));
+    attributes.put("hosts", ApplicationManifest.builder().hosts("web", "www"));
+    attributes.put("instances", ApplicationManifest.builder().instances(3));
+    attributes.put("memory", ApplicationManifest.builder().memory(512));
+    attributes.put("no-hostname", ApplicationManifest.builder().noHostname(true));
+    attributes.put("no-route", ApplicationManifest.builder().noRoute(true));
+    attributes.put("path", ApplicationManifest.builder().path(new File(folder, "target/web.war").toPath()));
+    attributes.put("random-route", ApplicationManifest.builder().randomRoute(true));
+    attributes.put("route-path", ApplicationManifest.builder().routePath("/api"));
+    attributes.put("routes", ApplicationManifest.builder().routes(Arrays.asList(
+            Route.builder().route("web.example.com").build(), Route.builder().route("web.example.com/api").build())));
+    attributes.put("services", ApplicationManifest.builder().services("db", "cache"));
+    attributes.put("stack", ApplicationManifest.builder().stack("cflinuxfs3"));
+    attributes.put("timeout", ApplicationManifest.builder().timeout(120));
+
+    for (Map.Entry<String, ApplicationManifest.Builder> attribute : attributes.entrySet()) {
+      Path location = new File(folder, attribute.getKey() + ".yml").toPath();
+      ApplicationManifestUtils.write(location, attribute.getValue().name("web").build());
+
+      List<ApplicationManifest> expected = ApplicationManifestUtils.read(location);
+      List<ApplicationManifest> actual = ManifestParser.parse(new String(Files.readAllBytes(location), StandardCharsets.UTF_8), location);
+
+      assertEquals(attribute.getKey(), expected, actual);
+    }
+  }
+
+  @Test
+  public void testIgnoredAttributesAreReported() throws Exception {
+    File folder = tempFolder.newFolder();
+    String yaml = "---\nsidecars: []\napplications:\n- name: web\n  memory: 1G\n  buildpacks:\n  - java_buildpack\n";
+
+    List<Map<String, Object>> applications = ManifestParser.applications(yaml, new File(folder, "manifest.yml").toPath(),
+            new ArrayList<>(), Collections.emptyMap());
+
+    assertEquals(Arrays.asList("sidecars", "buildpacks"), ManifestParser.ignoredAttributes(applications.get(0)));
+  }
+}
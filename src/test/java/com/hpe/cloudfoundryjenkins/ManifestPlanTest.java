@@ -0,0 +1,96 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ManifestChoice;
+import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ServiceName;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.util.Collections;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ManifestPlan}.
+ */
+public class ManifestPlanTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testConstantSettingsNeedNoBuild() throws Exception {
+    File folder = tempFolder.newFolder();
+    ManifestChoice manifestChoice = new ManifestChoice("jenkinsConfig", null, "hello-java", "1g", "hello", "2", "90", "true",
+            "target", "java-buildpack", "", "", "",
+            Collections.singletonList(new EnvironmentVariable("FOO", "bar")), Collections.singletonList(new ServiceName("mysql")));
+
+    ApplicationManifest manifest = manifestChoice.getPlan().resolve(new FilePath(folder), false, null, null, TaskListener.NULL);
+
+    assertEquals("hello-java", manifest.getName());
+    assertEquals(Integer.valueOf(1024), manifest.getMemory());
+    assertEquals(Collections.singletonList("hello"), manifest.getHosts());
+    assertEquals(Integer.valueOf(2), manifest.getInstances());
+    assertEquals(Integer.valueOf(90), manifest.getTimeout());
+    assertEquals(Boolean.TRUE, manifest.getNoRoute());
+    assertEquals(new File(folder, "target").toPath(), manifest.getPath());
+    assertEquals("java-buildpack", manifest.getBuildpack());
+    assertEquals("bar", manifest.getEnvironmentVariables().get("FOO"));
+    assertEquals(Collections.singletonList("mysql"), manifest.getServices());
+  }
+
+  @Test
+  public void testInvalidConstantFailsCompilation() throws Exception {
+    ManifestChoice manifestChoice = new ManifestChoice();
+    manifestChoice.setValue("jenkinsConfig");
+    manifestChoice.setAppName("hello-java");
+    manifestChoice.setInstances("many");
+    try {
+      manifestChoice.getPlan();
+      fail("invalid instances were accepted");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("instances"));
+    }
+  }
+
+  @Test
+  public void testSettingsWithMacrosAreCheckedWhenExpanded() throws Exception {
+    ManifestChoice manifestChoice = new ManifestChoice();
+    manifestChoice.setValue("jenkinsConfig");
+    manifestChoice.setAppName("hello-java");
+    manifestChoice.setInstances("${INSTANCES}");
+    ManifestPlan plan = manifestChoice.getPlan();
+
+    assertSame(plan, manifestChoice.getPlan());
+    manifestChoice.setMemory("512M");
+    assertNotSame(plan, manifestChoice.getPlan());
+  }
+
+  @Test
+  public void testFieldChangeRecompiles() throws Exception {
+    ManifestChoice manifestChoice = new ManifestChoice();
+    manifestChoice.setValue("jenkinsConfig");
+    manifestChoice.setAppName("hello-java");
+    ManifestPlan plan = manifestChoice.getPlan();
+
+    manifestChoice.instances = "many";
+    try {
+      manifestChoice.getPlan();
+      fail("a field changed without its setter should be compiled again");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("instances"));
+    }
+    manifestChoice.instances = null;
+    assertNotSame(plan, manifestChoice.getPlan());
+  }
+}
@@ -7,6 +7,7 @@ import com.google.common.collect.Lists;
 import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.EnvironmentVariable;
 import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ManifestChoice;
 import com.hpe.cloudfoundryjenkins.CloudFoundryPushPublisher.ServiceName;
+import hudson.AbortException;
 import hudson.FilePath;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
@@ -17,15 +18,23 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Paths;
 import java.util.AbstractMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.operations.applications.Docker;
+import org.cloudfoundry.operations.applications.Route;
 import org.jenkinsci.plugins.envinject.EnvInjectBuilder;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
@@ -157,4 +166,220 @@ public class ManifestUtilsTest {
     ApplicationManifest manifest = actual.get(0);
     assertEquals(f.getAbsolutePath(), manifest.getName());
   }
+
+  @Test
+  public void testConfigurationDigestIgnoresScaleAndStaging() throws Exception {
+    ApplicationManifest manifest = ApplicationManifest.builder()
+            .name("hello-java")
+            .command("echo Hello")
+            .instances(1)
+            .memory(512)
+            .build();
+    ApplicationManifest scaled = ApplicationManifest.builder()
+            .from(manifest)
+            .instances(4)
+            .memory(1024)
+            .disk(2048)
+            .path(tempFolder.getRoot().toPath())
+            .buildpack("java-buildpack")
+            .stack("cflinuxfs2")
+            .build();
+    ApplicationManifest changed = ApplicationManifest.builder()
+            .from(manifest)
+            .command("echo Goodbye")
+            .build();
+
+    assertEquals(ManifestUtils.configurationDigest(manifest), ManifestUtils.configurationDigest(scaled));
+    assertNotEquals(ManifestUtils.configurationDigest(manifest), ManifestUtils.configurationDigest(changed));
+  }
+
+  @Test
+  public void testBitsDigest() throws Exception {
+    File folder = tempFolder.newFolder();
+    File f = new File(folder, "index.html");
+    FileUtils.writeStringToFile(f, "Hello");
+    ApplicationManifest manifest = ApplicationManifest.builder()
+            .name("hello-java")
+            .path(folder.toPath())
+            .build();
+
+    String digest = ManifestUtils.bitsDigest(manifest);
+    assertEquals(digest, ManifestUtils.bitsDigest(manifest));
+
+    FileUtils.writeStringToFile(f, "Goodbye");
+    assertNotEquals(digest, ManifestUtils.bitsDigest(manifest));
+  }
+
+  @Test
+  public void testConfigurationDigestIgnoresOrder() throws Exception {
+    Map<String, Object> env = new LinkedHashMap<>();
+    env.put("A", "1");
+    env.put("B", "2");
+    Map<String, Object> reversedEnv = new LinkedHashMap<>();
+    reversedEnv.put("B", "2");
+    reversedEnv.put("A", "1");
+    ApplicationManifest manifest = ApplicationManifest.builder()
+            .name("hello-java")
+            .environmentVariables(env)
+            .services("mysql", "redis")
+            .route(Route.builder().route("a.example.com").build())
+            .route(Route.builder().route("b.example.com").build())
+            .build();
+    ApplicationManifest reordered = ApplicationManifest.builder()
+            .name("hello-java")
+            .environmentVariables(reversedEnv)
+            .services("redis", "mysql")
+            .route(Route.builder().route("b.example.com").build())
+            .route(Route.builder().route("a.example.com").build())
+            .build();
+
+    assertEquals(ManifestUtils.configurationDigest(manifest), ManifestUtils.configurationDigest(reordered));
+  }
+
+  @Test
+  public void testConfigurationDigestIncludesRoutesServicesAndEnvironment() throws Exception {
+    ApplicationManifest manifest = ApplicationManifest.builder()
+            .name("hello-java")
+            .environmentVariable("A", "1")
+            .service("mysql")
+            .route(Route.builder().route("a.example.com").build())
+            .build();
+    String digest = ManifestUtils.configurationDigest(manifest);
+
+    assertNotEquals(digest, ManifestUtils.configurationDigest(ApplicationManifest.builder().from(manifest).environmentVariable("A", "2").build()));
+    assertNotEquals(digest, ManifestUtils.configurationDigest(ApplicationManifest.builder().from(manifest).service("redis").build()));
+    assertNotEquals(digest, ManifestUtils.configurationDigest(ApplicationManifest.builder().from(manifest).route(Route.builder().route("b.example.com").build()).build()));
+    assertNotEquals(digest, ManifestUtils.configurationDigest(ApplicationManifest.builder().from(manifest).name("hello-go").build()));
+    assertNotEquals(digest, ManifestUtils.configurationDigest(ApplicationManifest.builder().from(manifest).timeout(180).build()));
+  }
+
+  @Test
+  public void testBitsDigestIncludesFileNames() throws Exception {
+    File folder = tempFolder.newFolder();
+    File f = new File(folder, "index.html");
+    FileUtils.writeStringToFile(f, "Hello");
+    ApplicationManifest manifest = ApplicationManifest.builder()
+            .name("hello-java")
+            .path(folder.toPath())
+            .build();
+    String digest = ManifestUtils.bitsDigest(manifest);
+
+    assertTrue(f.renameTo(new File(folder, "other.html")));
+    assertNotEquals(digest, ManifestUtils.bitsDigest(manifest));
+  }
+
+  @Test
+  public void testBitsDigestWithoutPath() throws Exception {
+    ApplicationManifest docker = ApplicationManifest.builder()
+            .name("hello-docker")
+            .docker(Docker.builder().image("cloudfoundry/hello").build())
+            .build();
+    ApplicationManifest none = ApplicationManifest.builder()
+            .name("hello-nothing")
+            .build();
+
+    assertEquals("docker:cloudfoundry/hello", ManifestUtils.bitsDigest(docker));
+    assertNull(ManifestUtils.bitsDigest(none));
+  }
+
+  @Test
+  public void testValidateManifests() throws Exception {
+    File folder = tempFolder.newFolder();
+    File f = new File(folder, "manifest.yml");
+    FileUtils.writeStringToFile(f, "applications:\n- name: ${BUILD_DISPLAY_NAME}\n  memory: 512M\n");
+
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    build.setDisplayName("validated");
+    ManifestChoice manifestChoice = new ManifestChoice();
+    manifestChoice.setManifestFile(f.getAbsolutePath());
+
+    assertEquals(Lists.newArrayList("validated"),
+            ManifestUtils.validateManifests(new FilePath(folder), manifestChoice, true, build, TaskListener.NULL).getNames());
+  }
+
+  @Test
+  public void testValidateManifestsRejectsInvalidMemory() throws Exception {
+    File folder = tempFolder.newFolder();
+    FileUtils.writeStringToFile(new File(folder, "manifest.yml"), "applications:\n- name: hello-java\n  memory: lots\n");
+
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    try {
+      ManifestUtils.validateManifests(new FilePath(folder), ManifestChoice.defaultManifestFileConfig(), true, build, TaskListener.NULL);
+      fail("invalid memory was accepted");
+    } catch (AbortException e) {
+      assertTrue(e.getMessage().contains("lots"));
+    }
+  }
+
+  @Test
+  public void testValidateManifestsRejectsMissingPath() throws Exception {
+    File folder = tempFolder.newFolder();
+    FileUtils.writeStringToFile(new File(folder, "manifest.yml"), "applications:\n- name: hello-java\n  path: target/missing.jar\n");
+
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    try {
+      ManifestUtils.validateManifests(new FilePath(folder), ManifestChoice.defaultManifestFileConfig(), true, build, TaskListener.NULL);
+      fail("a missing path was accepted");
+    } catch (AbortException e) {
+      assertTrue(e.getMessage().contains("missing.jar"));
+    }
+  }
+
+  @Test
+  public void testValidateManifestsForPromotionIgnoresMissingPath() throws Exception {
+    File folder = tempFolder.newFolder();
+    FileUtils.writeStringToFile(new File(folder, "manifest.yml"), "applications:\n- name: hello-java\n  path: target/missing.jar\n");
+
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+
+    assertEquals(Lists.newArrayList("hello-java"),
+            ManifestUtils.validateManifests(new FilePath(folder), ManifestChoice.defaultManifestFileConfig(), false, build, TaskListener.NULL).getNames());
+  }
+
+  @Test
+  public void testManifestFilePattern() throws Exception {
+    File folder = tempFolder.newFolder();
+    File web = new File(folder, "services/web");
+    File worker = new File(folder, "services/worker");
+    FileUtils.writeStringToFile(new File(worker, "manifest.yml"), "applications:\n- name: worker\n");
+    FileUtils.writeStringToFile(new File(web, "manifest.yml"), "applications:\n- name: web\n- name: web-admin\n");
+
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    ManifestChoice manifestChoice = new ManifestChoice();
+    manifestChoice.setManifestFile("services/*/manifest.yml");
+    List<ApplicationManifest> actual = ManifestUtils.loadManifests(new FilePath(folder), manifestChoice, false, build, build.getWorkspace(), TaskListener.NULL);
+
+    assertEquals(Lists.newArrayList("web", "web-admin", "worker"),
+            actual.stream().map(ApplicationManifest::getName).collect(Collectors.toList()));
+    assertEquals(web.toPath(), actual.get(0).getPath());
+    assertEquals(worker.toPath(), actual.get(2).getPath());
+  }
+
+  @Test
+  public void testValidatedManifestsResolveWithoutReadingAgain() throws Exception {
+    File workspace = tempFolder.newFolder();
+    File copy = tempFolder.newFolder();
+    FileUtils.writeStringToFile(new File(workspace, "services/base.yml"), "instances: 3\n");
+    FileUtils.writeStringToFile(new File(workspace, "services/manifest.yml"),
+            "inherit: base.yml\napplications:\n- name: web\n  path: target/web.war\n");
+    FileUtils.writeStringToFile(new File(workspace, "services/target/web.war"), "war");
+
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    ManifestChoice manifestChoice = new ManifestChoice();
+    manifestChoice.setManifestFile("services/manifest.yml");
+    ManifestUtils.ValidatedManifests validated = ManifestUtils.validateManifests(new FilePath(workspace), manifestChoice, true, build, TaskListener.NULL);
+    // the copy of the application files need not hold the manifests
+    FileUtils.deleteDirectory(new File(workspace, "services"));
+    List<ApplicationManifest> actual = validated.resolve(new FilePath(copy), true, build, new FilePath(workspace), TaskListener.NULL);
+
+    assertEquals(1, actual.size());
+    assertEquals(Integer.valueOf(3), actual.get(0).getInstances());
+    assertEquals(new File(copy, "services/target/web.war").toPath(), actual.get(0).getPath());
+  }
 }
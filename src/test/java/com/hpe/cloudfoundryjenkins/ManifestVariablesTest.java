@@ -0,0 +1,84 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.io.FileUtils;
+import org.cloudfoundry.operations.applications.ApplicationManifest;
+import org.cloudfoundry.operations.applications.Route;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ManifestVariables}.
+ */
+public class ManifestVariablesTest {
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  @Test
+  public void testPlaceholdersAreResolved() throws Exception {
+    Map<String, Object> vars = new LinkedHashMap<>();
+    vars.put("env", "staging");
+    vars.put("instances", 3);
+    vars.put("db", Collections.singletonMap("url", "mysql://db"));
+    String yaml = "applications:\n"
+            + "- name: hello-((env))\n"
+            + "  instances: ((instances))\n"
+            + "  env:\n"
+            + "    DB_URL: ((db.url))\n"
+            + "  routes:\n"
+            + "  - route: hello-((env)).example.com\n";
+    List<ApplicationManifest> manifests = ManifestParser.parse(yaml, tempFolder.newFile("manifest.yml").toPath(),
+            new ArrayList<>(), vars);
+
+    ApplicationManifest manifest = manifests.get(0);
+    assertEquals("hello-staging", manifest.getName());
+    assertEquals(Integer.valueOf(3), manifest.getInstances());
+    assertEquals("mysql://db", manifest.getEnvironmentVariables().get("DB_URL"));
+    assertEquals(Collections.singletonList(Route.builder().route("hello-staging.example.com").build()), manifest.getRoutes());
+  }
+
+  @Test
+  public void testPlaceholdersInInheritedManifestsAreResolved() throws Exception {
+    File folder = tempFolder.newFolder();
+    FileUtils.writeStringToFile(new File(folder, "base.yml"), "memory: ((memory))\n");
+    String yaml = "inherit: base.yml\napplications:\n- name: hello-java\n";
+    List<ApplicationManifest> manifests = ManifestParser.parse(yaml, new File(folder, "manifest.yml").toPath(),
+            new ArrayList<>(), Collections.singletonMap("memory", "1G"));
+
+    assertEquals(Integer.valueOf(1024), manifests.get(0).getMemory());
+  }
+
+  @Test
+  public void testMissingVariablesAreReported() throws Exception {
+    try {
+      ManifestVariables.resolve(Collections.singletonMap("name", "((first))-((second))"), Collections.singletonMap("other", "x"));
+      fail("missing variables were accepted");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("first, second"));
+    }
+  }
+
+  @Test
+  public void testPlaceholderWithoutVarsFilesIsReported() throws Exception {
+    File folder = tempFolder.newFolder();
+    try {
+      ManifestParser.parse("applications:\n- name: hello-((env))\n", new File(folder, "manifest.yml").toPath());
+      fail("a placeholder was accepted without any variables");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage().contains("env"));
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PushScheduler}.
+ */
+public class PushSchedulerTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void createExecutor() {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void shutdownExecutor() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testSequentialPushesRunInOrder() throws Exception {
+    List<Integer> order = new CopyOnWriteArrayList<>();
+    List<PushScheduler.Push> pushes = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      int index = i;
+      pushes.add(() -> order.add(index));
+    }
+    new PushScheduler(0, executor).runAll(pushes);
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+  }
+
+  @Test
+  public void testConcurrencyIsLimited() throws Exception {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger mostRunning = new AtomicInteger();
+    AtomicInteger done = new AtomicInteger();
+    // the first three pushes only finish once all three run at the same time
+    CyclicBarrier firstThree = new CyclicBarrier(3);
+    List<PushScheduler.Push> pushes = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      int index = i;
+      pushes.add(() -> {
+        mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        if (index < 3) {
+          firstThree.await(10, TimeUnit.SECONDS);
+        }
+        running.decrementAndGet();
+        done.incrementAndGet();
+      });
+    }
+    new PushScheduler(3, executor).runAll(pushes);
+    assertEquals(8, done.get());
+    assertEquals(3, mostRunning.get());
+  }
+
+  @Test
+  public void testFirstFailureIsThrown() throws Exception {
+    AtomicInteger done = new AtomicInteger();
+    List<PushScheduler.Push> pushes = new ArrayList<>();
+    pushes.add(() -> {
+      throw new IOException("first");
+    });
+    for (int i = 0; i < 20; i++) {
+      pushes.add(() -> {
+        TimeUnit.MILLISECONDS.sleep(20);
+        done.incrementAndGet();
+      });
+    }
+    try {
+      new PushScheduler(2, executor).runAll(pushes);
+      fail("the failure was not thrown");
+    } catch (IOException e) {
+      assertEquals("first", e.getMessage());
+    }
+    assertTrue(done.get() < 20);
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.doppler.MessageType;
+import org.junit.Test;
+import reactor.core.publisher.Flux;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link RecentLogs}.
+ */
+public class RecentLogsTest {
+
+  private static LogMessage message(String sourceType, String text, long ageSeconds) {
+    return LogMessage.builder()
+            .applicationId("app-id")
+            .message(text)
+            .messageType(MessageType.OUT)
+            .sourceInstance("0")
+            .sourceType(sourceType)
+            .timestamp(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - TimeUnit.SECONDS.toNanos(ageSeconds))
+            .build();
+  }
+
+  private static String print(RecentLogs recentLogs, LogMessage... logs) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    recentLogs.print(Flux.just(logs), new StreamTaskListener(out, StandardCharsets.UTF_8), 10);
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void testOnlyTheNewestLinesArePrinted() throws Exception {
+    String printed = print(new RecentLogs(2, 0),
+            message("STG", "one", 0),
+            message("STG", "two", 0),
+            message("CELL", "three", 0),
+            message("API", "four", 0));
+
+    assertEquals("(2 older log lines not shown)\nthree\nfour\n", printed);
+  }
+
+  @Test
+  public void testOldLinesAreDropped() throws Exception {
+    String printed = print(new RecentLogs(0, 60),
+            message("STG", "an hour ago", 3600),
+            message("STG", "just now", 0));
+
+    assertEquals("just now\n", printed);
+  }
+
+  @Test
+  public void testApplicationOutputIsLeftOut() throws Exception {
+    String printed = print(new RecentLogs(1, 0),
+            message("STG", "staged", 0),
+            message("APP/PROC/WEB", "request served", 0),
+            message("RTR", "GET /", 0));
+
+    assertEquals("staged\n", printed);
+  }
+}
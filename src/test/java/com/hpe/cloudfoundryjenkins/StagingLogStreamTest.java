@@ -0,0 +1,78 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.cloudfoundry.doppler.LogMessage;
+import org.cloudfoundry.doppler.MessageType;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link StagingLogStream}.
+ */
+public class StagingLogStreamTest {
+
+  private static boolean matches(List<Pattern> patterns, String line) {
+    return StagingLogStream.isFailure(patterns, message("STG", line));
+  }
+
+  private static LogMessage message(String sourceType, String text) {
+    return LogMessage.builder()
+            .message(text)
+            .messageType(MessageType.OUT)
+            .sourceInstance("0")
+            .sourceType(sourceType)
+            .timestamp(System.nanoTime())
+            .build();
+  }
+
+  @Test
+  public void testDefaultFailurePatterns() throws Exception {
+    StreamTaskListener listener = new StreamTaskListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8);
+    List<Pattern> patterns = StagingLogStream.compileFailurePatterns("  ", listener);
+    assertTrue("should match the stager failure", matches(patterns, "Staging failed: Exited with status 223"));
+    assertTrue("should match a compile failure", matches(patterns, "Failed to compile droplet: Failed to run all supply scripts: exit status 14"));
+    assertTrue("should match a staging container killed for memory", matches(patterns, "Exit status 137 (out of memory)"));
+    assertFalse("should not match a normal staging line", matches(patterns, "Downloading java_buildpack..."));
+  }
+
+  @Test
+  public void testOnlyStagingLinesAreFailures() throws Exception {
+    StreamTaskListener listener = new StreamTaskListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8);
+    List<Pattern> patterns = StagingLogStream.compileFailurePatterns("  ", listener);
+    assertTrue(StagingLogStream.isFailure(patterns, message("STG", "Staging failed: Exited with status 223")));
+    assertFalse("should leave application lines to the crash detector",
+            StagingLogStream.isFailure(patterns, message("APP/PROC/WEB", "Staging failed: Exited with status 223")));
+    assertFalse("should leave cell lines to the crash detector",
+            StagingLogStream.isFailure(patterns, message("CELL", "Exit status 137 (out of memory)")));
+  }
+
+  @Test
+  public void testDefaultsDoNotMatchApplicationFailures() throws Exception {
+    StreamTaskListener listener = new StreamTaskListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8);
+    List<Pattern> patterns = StagingLogStream.compileFailurePatterns("  ", listener);
+    // the JVM reports these when the application starts, not while it stages
+    assertFalse(matches(patterns, "Cannot calculate JVM memory configuration: There is insufficient memory remaining for heap."));
+    assertFalse(matches(patterns, "java.lang.OutOfMemoryError: Java heap space"));
+  }
+
+  @Test
+  public void testInvalidPatternIsMatchedLiterally() throws Exception {
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    StreamTaskListener listener = new StreamTaskListener(log, StandardCharsets.UTF_8);
+    List<Pattern> patterns = StagingLogStream.compileFailurePatterns("ERROR [x\n\nfatal: .*", listener);
+    assertEquals("should skip blank lines", 2, patterns.size());
+    assertTrue("should match the invalid pattern literally", matches(patterns, "ERROR [x in module"));
+    assertTrue("should match the valid pattern", matches(patterns, "fatal: out of disk"));
+    assertFalse("should not use the defaults", matches(patterns, "Staging failed"));
+    listener.getLogger().flush();
+    assertTrue("should warn about the invalid pattern", log.toString("UTF-8").contains("invalid staging failure pattern ERROR [x"));
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * © 2018 The original author or authors.
+ */
+package com.hpe.cloudfoundryjenkins;
+
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import java.util.Collections;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link TokenExpander}.
+ */
+public class TokenExpanderTest {
+
+  @ClassRule
+  public static JenkinsRule jenkinsRule = new JenkinsRule();
+
+  @Test
+  public void testExpandsEachReferenceOnce() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    build.setDisplayName("expander");
+    TokenExpander expander = new TokenExpander(build, build.getWorkspace(), TaskListener.NULL);
+
+    String expanded = expander.expand("---\napplications:\n- name: ${BUILD_DISPLAY_NAME}\n  host: ${BUILD_DISPLAY_NAME}-$BUILD_DISPLAY_NAME\n");
+
+    assertEquals("---\napplications:\n- name: expander\n  host: expander-expander\n", expanded);
+    assertEquals("each distinct reference should be expanded once", 2, expander.getExpansions().size());
+  }
+
+  @Test
+  public void testLeavesTextWithoutMacros() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    TokenExpander expander = new TokenExpander(build, build.getWorkspace(), TaskListener.NULL);
+    String text = "applications:\n- name: plain\n";
+
+    assertSame(text, expander.expand(text));
+    assertTrue(expander.getExpansions().isEmpty());
+  }
+
+  @Test
+  public void testBraceInQuotedArgumentDoesNotEndReference() throws Exception {
+    FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    TokenExpander expander = new TokenExpander(build, build.getWorkspace(), TaskListener.NULL);
+
+    String expanded = expander.expand("name: x-${ENV,var=\"a}b\"}-y\n");
+
+    assertEquals(Collections.singleton("${ENV,var=\"a}b\"}"), expander.getExpansions().keySet());
+    assertFalse(expanded, expanded.contains("b\""));
+    assertTrue(expanded, expanded.endsWith("-y\n"));
+  }
+
+  @Test
+  public void testReferenceEnd() {
+    assertEquals(7, TokenExpander.referenceEnd("${NAME} rest", 0));
+    assertEquals(16, TokenExpander.referenceEnd("${ENV,var=\"a}b\"} rest", 0));
+    assertEquals("nested braces", 12, TokenExpander.referenceEnd("${X,arg={a}} rest", 0));
+    assertEquals("an unclosed reference takes the rest of its line", 8, TokenExpander.referenceEnd("${NAME x\nnext: ${Y}", 0));
+  }
+}